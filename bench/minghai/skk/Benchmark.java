@@ -0,0 +1,271 @@
+package minghai.skk;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 辞書の検索、補完、ローマ字変換、カタカナ変換の速さを測るコマンド。
+ * デスクトップのJVMで、DictionaryCompilerで作った実際の辞書を使って測る。
+ *
+ * リポジトリの最上位で次のように実行する。-sourcepath srcで使うクラスだけをsrcから
+ * コンパイルするので、Android SDKはいらない。
+ *
+ * <pre>
+ * javac -encoding UTF-8 -sourcepath src -d bench-bin bench/minghai/skk/*.java
+ * java -cp bench-bin minghai.skk.DictionaryCompiler SKK-JISYO.L skk_dict.bin
+ * java -cp bench-bin minghai.skk.Benchmark [-n 回数] [-w 準備運転の回数]
+ *     [-c lookup|miss|complete|romaji|katakana] skk_dict.bin
+ * </pre>
+ *
+ * 項目ごとに、スループット(ops/s)、1回あたりの時間の分布(50/90/99/99.9パーセンタイルと最大)、
+ * 1回あたりに確保したメモリの量を表示する。入力は辞書の読みから乱数で選ぶが、
+ * 乱数の種は固定なので同じ辞書なら毎回同じ入力になる。
+ * 辞書やキャッシュに手を入れた時は、前後でこの結果を比べること。
+ */
+public class Benchmark {
+  static final int DEFAULT_OPS = 200000;
+  static final int DEFAULT_WARMUP = 100000;
+  // 入力として使う読みの数
+  static final int SAMPLES = 10000;
+
+  /**
+   * 測る処理。run()は結果が最適化で消されないよう何か値を返す
+   */
+  private static abstract class Case {
+    final String mName;
+    final int mInputs;
+
+    Case(String name, int inputs) {
+      mName = name;
+      mInputs = inputs;
+    }
+
+    /**
+     * i番目の入力で1回実行する
+     */
+    abstract int run(int i);
+  }
+
+  private final MappedDictionary mDictionary;
+  private final Random mRandom = new Random(0);
+  private final List<Case> mCases = new ArrayList<Case>();
+  private int mOps = DEFAULT_OPS;
+  private int mWarmup = DEFAULT_WARMUP;
+  private int mSink = 0;
+
+  Benchmark(MappedDictionary dictionary) {
+    mDictionary = dictionary;
+  }
+
+  public static void main(String[] args) {
+    int ops = DEFAULT_OPS;
+    int warmup = DEFAULT_WARMUP;
+    String only = null;
+    int i = 0;
+    for (; i < args.length - 1 && args[i].startsWith("-"); i++) {
+      if (args[i].equals("-n") && i + 1 < args.length) {
+        ops = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-w") && i + 1 < args.length) {
+        warmup = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-c") && i + 1 < args.length) {
+        only = args[++i];
+      } else {
+        usage();
+      }
+    }
+    if (i != args.length - 1) usage();
+
+    MappedDictionary dic = null;
+    try {
+      dic = new MappedDictionary(args[i]);
+      Benchmark b = new Benchmark(dic);
+      b.mOps = ops;
+      b.mWarmup = warmup;
+      b.setUp();
+      b.runAll(only);
+    } catch (IOException e) {
+      System.err.println(e);
+      System.exit(1);
+    } finally {
+      if (dic != null) dic.close();
+    }
+  }
+
+  private static void usage() {
+    System.err.println("usage: Benchmark [-n ops] [-w warmup ops] [-c lookup|miss|complete|romaji|katakana] skk_dict.bin");
+    System.exit(2);
+  }
+
+  private void setUp() {
+    int size = mDictionary.size();
+    if (size == 0) throw new IllegalArgumentException("Empty dictionary: " + mDictionary);
+
+    final String[] keys = new String[Math.min(SAMPLES, size)];
+    final String[] misses = new String[keys.length];
+    final List<String> plain = new ArrayList<String>();
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = mDictionary.getKey(mRandom.nextInt(size));
+      // 辞書にない読み。Bloomフィルタで弾かれるかどうかも含めて測る
+      misses[i] = keys[i] + 'ゐ';
+      if (!MappedDictionary.isOkuriKey(keys[i])) plain.add(keys[i]);
+    }
+
+    // 補完は入力途中の読みで引くので、1文字から5文字までの接頭辞にする
+    final String[] prefixes = new String[plain.size()];
+    for (int i = 0; i < prefixes.length; i++) {
+      String key = plain.get(i);
+      prefixes[i] = key.substring(0, Math.min(key.length(), 1 + mRandom.nextInt(5)));
+    }
+
+    final String[] romaji = toRomaji(plain);
+    final StringBuilder buf = new StringBuilder();
+    final RomajiConverter converter = new RomajiConverter(RomajiTable.createDefault());
+
+    mCases.add(new Case("lookup", keys.length) {
+      int run(int i) {
+        List<String> list = mDictionary.findCandidates(keys[i]);
+        return (list == null) ? 0 : list.size();
+      }
+    });
+    mCases.add(new Case("miss", misses.length) {
+      int run(int i) {
+        return (mDictionary.findCandidates(misses[i]) == null) ? 0 : 1;
+      }
+    });
+    mCases.add(new Case("complete", prefixes.length) {
+      int run(int i) {
+        return mDictionary.complete(prefixes[i], SkkEngine.COMPLETION_SIZE).size();
+      }
+    });
+    mCases.add(new Case("romaji", romaji.length) {
+      int run(int i) {
+        buf.setLength(0);
+        converter.convert(romaji[i], buf);
+        converter.flush(buf);
+        return buf.length();
+      }
+    });
+    mCases.add(new Case("katakana", plain.size()) {
+      int run(int i) {
+        buf.setLength(0);
+        KanaConverter.toKatakana(plain.get(i), buf);
+        return buf.length();
+      }
+    });
+  }
+
+  // 読みをローマ字に戻す。ローマ字の表を辿ってかな → ローマ字の表を作り、長いかなから当てはめる。
+  // 戻せない文字を含む読みは使わない
+  private static String[] toRomaji(List<String> readings) {
+    RomajiTable table = RomajiTable.createDefault();
+    Map<String, String> map = new HashMap<String, String>();
+    collect(table, RomajiTable.ROOT, new StringBuilder(), map);
+    int longest = 0;
+    for (String kana : map.keySet()) {
+      longest = Math.max(longest, kana.length());
+    }
+
+    List<String> result = new ArrayList<String>();
+    StringBuilder sb = new StringBuilder();
+    for (String reading : readings) {
+      sb.setLength(0);
+      int pos = 0;
+      while (pos < reading.length()) {
+        String romaji = null;
+        int len = Math.min(longest, reading.length() - pos);
+        for (; len > 0; len--) {
+          romaji = map.get(reading.substring(pos, pos + len));
+          if (romaji != null) break;
+        }
+        if (romaji == null) break;
+        sb.append(romaji);
+        pos += len;
+      }
+      if (pos == reading.length()) result.add(sb.toString());
+    }
+    return result.toArray(new String[result.size()]);
+  }
+
+  private static void collect(RomajiTable table, int state, StringBuilder path, Map<String, String> map) {
+    for (char c = '!'; c <= '~'; c++) {
+      int next = table.next(state, c);
+      if (next == RomajiTable.NONE) continue;
+      path.append(c);
+      String kana = table.getKana(next);
+      // "kk"のように続きのローマ字が残る規則は使わない。同じかなは短いローマ字を使う
+      if (kana != null && table.getRest(next).length() == 0) {
+        String old = map.get(kana);
+        if (old == null || old.length() > path.length()) map.put(kana, path.toString());
+      }
+      if (table.hasNext(next)) collect(table, next, path, map);
+      path.setLength(path.length() - 1);
+    }
+  }
+
+  private void runAll(String only) {
+    System.out.println(mDictionary);
+    System.out.println(String.format("%-10s %12s %9s %9s %9s %9s %9s %10s",
+        "case", "ops/s", "p50(us)", "p90", "p99", "p99.9", "max", "bytes/op"));
+    for (Case c : mCases) {
+      if (only != null && !only.equals(c.mName)) continue;
+      if (c.mInputs == 0) {
+        System.out.println(String.format("%-10s (no input)", c.mName));
+        continue;
+      }
+      measure(c);
+    }
+    // 結果を使ったことにする
+    if (mSink == 42) System.out.println();
+  }
+
+  private void measure(Case c) {
+    for (int i = 0; i < mWarmup; i++) {
+      mSink += c.run(i % c.mInputs);
+    }
+
+    // スループットとメモリは1回ずつ時間を測らずに、分布は1回ずつ測って別々に求める
+    long bytes = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < mOps; i++) {
+      mSink += c.run(i % c.mInputs);
+    }
+    long elapsed = Math.max(System.nanoTime() - start, 1);
+    long allocated = allocatedBytes() - bytes;
+
+    long[] times = new long[mOps];
+    for (int i = 0; i < mOps; i++) {
+      long t = System.nanoTime();
+      mSink += c.run(i % c.mInputs);
+      times[i] = System.nanoTime() - t;
+    }
+    Arrays.sort(times);
+
+    System.out.println(String.format("%-10s %12.0f %9.2f %9.2f %9.2f %9.2f %9.2f %10s",
+        c.mName, mOps * 1e9 / elapsed,
+        percentile(times, 0.50), percentile(times, 0.90), percentile(times, 0.99),
+        percentile(times, 0.999), times[times.length - 1] / 1000.0,
+        (bytes < 0) ? "-" : String.valueOf(allocated / mOps)));
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    int i = (int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)));
+    return sorted[i] / 1000.0;
+  }
+
+  // このスレッドが確保したメモリの量。JVMが対応していなければ-1
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean) bean;
+      if (b.isThreadAllocatedMemorySupported()) return b.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+}
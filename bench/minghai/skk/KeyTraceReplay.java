@@ -0,0 +1,146 @@
+package minghai.skk;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * 記録したキー入力(KeyTrace)をSkkEngineにできるだけ速く流し、1キーあたりの処理時間の分布を表示する。
+ * Androidなしで、実際の辞書を使って変換エンジン全体を測る。補完候補もその場で検索するので、
+ * 時間には辞書の検索も含まれる。
+ *
+ * コンパイルと辞書の作り方はBenchmarkと同じ。
+ *
+ * <pre>
+ * javac -encoding UTF-8 -sourcepath src -d bench-bin bench/minghai/skk/*.java
+ * java -cp bench-bin minghai.skk.KeyTraceReplay [-n 回数] [-w 準備運転の回数] skk_dict.bin trace.txt
+ * java -cp bench-bin minghai.skk.KeyTraceReplay [-n 回数] skk_dict.bin -s "WatashiHa Kanji "
+ * </pre>
+ */
+public class KeyTraceReplay {
+  static final int DEFAULT_REPEAT = 1000;
+  static final int DEFAULT_WARMUP = 200;
+
+  // 出力は数えるだけ
+  private static class CountingOutput implements SkkEngine.Output {
+    long mCommits = 0;
+    long mComposings = 0;
+    long mKeys = 0;
+    long mCandidates = 0;
+
+    public void commitText(CharSequence text, int newCursorPosition) {
+      mCommits++;
+    }
+
+    public void setComposingText(CharSequence text, int newCursorPosition) {
+      mComposings++;
+    }
+
+    public void sendEnter() {
+      mKeys++;
+    }
+
+    public void sendBackspace() {
+      mKeys++;
+    }
+
+    public void showCandidates(List<String> candidates, boolean completions, boolean typedWordValid) {
+      mCandidates++;
+    }
+
+    public void chooseCandidate(int index) {
+    }
+  }
+
+  public static void main(String[] args) {
+    int repeat = DEFAULT_REPEAT;
+    int warmup = DEFAULT_WARMUP;
+    int i = 0;
+    for (; i < args.length && args[i].startsWith("-") && !args[i].equals("-s"); i++) {
+      if (args[i].equals("-n") && i + 1 < args.length) {
+        repeat = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-w") && i + 1 < args.length) {
+        warmup = Integer.parseInt(args[++i]);
+      } else {
+        usage();
+      }
+    }
+    if (args.length - i < 2) usage();
+    String dictionary = args[i++];
+
+    DictionaryLoader loader = null;
+    try {
+      KeyTrace trace;
+      if (args[i].equals("-s") && i + 1 < args.length) {
+        trace = KeyTrace.fromString(args[i + 1]);
+      } else {
+        InputStreamReader in = new InputStreamReader(new FileInputStream(args[i]), "UTF-8");
+        try {
+          trace = KeyTrace.parse(in);
+        } finally {
+          in.close();
+        }
+      }
+
+      loader = new DictionaryLoader(dictionary, null, null, new DictionaryLoader.Listener() {
+        public void onDictionaryError(String path, IOException e) {
+          System.err.println(path + ": " + e);
+        }
+      });
+      loader.start();
+      if (loader.await(10000) == null) System.exit(1);
+
+      CountingOutput output = new CountingOutput();
+      SkkEngine engine = new SkkEngine(RomajiTable.createDefault(), " .,", loader, output, null);
+      LatencyHistogram histogram = new LatencyHistogram();
+
+      for (int r = 0; r < warmup; r++) {
+        replay(engine, trace, null);
+      }
+      output = new CountingOutput();
+      engine = new SkkEngine(RomajiTable.createDefault(), " .,", loader, output, null);
+      long start = System.nanoTime();
+      for (int r = 0; r < repeat; r++) {
+        replay(engine, trace, histogram);
+      }
+      long elapsed = Math.max(System.nanoTime() - start, 1);
+      engine.close();
+
+      PrintWriter out = new PrintWriter(System.out, true);
+      long keys = histogram.getCount();
+      out.println(trace.size() + " keys x " + repeat + ": "
+          + String.format("%.0f", keys * 1e9 / elapsed) + " keys/s");
+      out.println(String.format("per key: %.2f commitText, %.2f setComposingText, %.2f candidate updates",
+          (double) output.mCommits / keys, (double) output.mComposings / keys, (double) output.mCandidates / keys));
+      histogram.print(out, "key latency");
+    } catch (IOException e) {
+      System.err.println(e);
+      System.exit(1);
+    } finally {
+      if (loader != null) loader.close();
+    }
+  }
+
+  private static void usage() {
+    System.err.println("usage: KeyTraceReplay [-n repeat] [-w warmup] skk_dict.bin (trace.txt | -s keys)");
+    System.exit(2);
+  }
+
+  // 間隔は無視して順に流す。毎回ひらがな入力の初期状態から始める
+  private static void replay(SkkEngine engine, KeyTrace trace, LatencyHistogram histogram) {
+    engine.reset();
+    engine.setInputMode(InputMode.HIRAKANA);
+    for (int i = 0; i < trace.size(); i++) {
+      int code = trace.getCode(i);
+      long t = System.nanoTime();
+      if (code == KeyTrace.KEY_BACKSPACE) {
+        engine.handleBackspace();
+      } else {
+        engine.onKey(code, false);
+      }
+      if (histogram != null) histogram.record(System.nanoTime() - t);
+    }
+  }
+}
@@ -24,6 +24,7 @@ public final class R {
     }
     public static final class dimen {
         public static final int candidate_font_height=0x7f060001;
+        public static final int candidate_grid_height=0x7f060003;
         public static final int candidate_vertical_padding=0x7f060002;
         public static final int key_height=0x7f060000;
     }
@@ -67,21 +68,25 @@ public final class R {
         public static final int sym_keyboard_space=0x7f020024;
     }
     public static final class id {
+        public static final int candidate_expand=0x7f090006;
+        public static final int candidate_expand_parent=0x7f090005;
+        public static final int candidate_grid=0x7f090007;
         public static final int candidate_left=0x7f090001;
         public static final int candidate_left_parent=0x7f090000;
         public static final int candidate_right=0x7f090004;
         public static final int candidate_right_parent=0x7f090003;
         public static final int candidates=0x7f090002;
-        public static final int keyboard=0x7f090005;
-        public static final int mode_email=0x7f090008;
-        public static final int mode_im=0x7f090009;
-        public static final int mode_normal=0x7f090006;
-        public static final int mode_url=0x7f090007;
+        public static final int keyboard=0x7f090008;
+        public static final int mode_email=0x7f09000b;
+        public static final int mode_im=0x7f09000c;
+        public static final int mode_normal=0x7f090009;
+        public static final int mode_url=0x7f09000a;
     }
     public static final class layout {
-        public static final int candidate_preview=0x7f030000;
-        public static final int candidates=0x7f030001;
-        public static final int input=0x7f030002;
+        public static final int candidate_cell=0x7f030000;
+        public static final int candidate_preview=0x7f030001;
+        public static final int candidates=0x7f030002;
+        public static final int input=0x7f030003;
     }
     public static final class string {
         /**  Indicates that a word has been added to the dictionary 
@@ -0,0 +1,91 @@
+package minghai.skk;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 辞書に存在しない読みを辞書本体に触れずに弾くためのBloomフィルタ。
+ * mightContain()がfalseなら確実に存在しない。trueの場合は誤判定の可能性がある。
+ * ビット列はByteBufferなので、辞書ファイルにマップされた領域をそのまま使える。
+ */
+public class BloomFilter {
+  static final int DEFAULT_BITS_PER_KEY = 10;
+
+  private final ByteBuffer mBits;
+  private final int mBitCount;
+  private final int mHashCount;
+
+  BloomFilter(ByteBuffer bits, int hashCount) {
+    mBits = bits;
+    mBitCount = bits.limit() * 8;
+    mHashCount = hashCount;
+  }
+
+  /**
+   * expectedKeys個のキーを入れるための空のフィルタを作る
+   */
+  static BloomFilter create(int expectedKeys, int bitsPerKey) {
+    int bytes = Math.max((int) (((long) expectedKeys * bitsPerKey + 7) / 8), 8);
+    int hashes = Math.max((int) Math.round(bitsPerKey * Math.log(2)), 1);
+    return new BloomFilter(ByteBuffer.wrap(new byte[bytes]), hashes);
+  }
+
+  int getHashCount() {
+    return mHashCount;
+  }
+
+  ByteBuffer getBits() {
+    return mBits;
+  }
+
+  /**
+   * n個のキーを入れた時の理論上の誤判定率
+   */
+  double expectedFalsePositiveRate(int n) {
+    return Math.pow(1 - Math.exp(-(double) mHashCount * n / mBitCount), mHashCount);
+  }
+
+  void add(CharSequence key) {
+    int h1 = hash1(key);
+    int h2 = hash2(key);
+    for (int i = 0; i < mHashCount; i++) {
+      int bit = ((h1 + i * h2) & 0x7FFFFFFF) % mBitCount;
+      int index = bit >>> 3;
+      mBits.put(index, (byte) (mBits.get(index) | (1 << (bit & 7))));
+    }
+  }
+
+  public boolean mightContain(CharSequence key) {
+    int h1 = hash1(key);
+    int h2 = hash2(key);
+    for (int i = 0; i < mHashCount; i++) {
+      int bit = ((h1 + i * h2) & 0x7FFFFFFF) % mBitCount;
+      if ((mBits.get(bit >>> 3) & (1 << (bit & 7))) == 0) return false;
+    }
+    return true;
+  }
+
+  // FNV-1a
+  private static int hash1(CharSequence key) {
+    int h = 0x811C9DC5;
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      h = (h ^ (c & 0xFF)) * 0x01000193;
+      h = (h ^ (c >>> 8)) * 0x01000193;
+    }
+    return h;
+  }
+
+  // String.hashCode()をMurmurHash3の最終処理で混ぜたもの。奇数にしてビット位置を全て巡るようにする
+  private static int hash2(CharSequence key) {
+    int h = 0;
+    for (int i = 0; i < key.length(); i++) {
+      h = 31 * h + key.charAt(i);
+    }
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >>> 16;
+    return h | 1;
+  }
+}
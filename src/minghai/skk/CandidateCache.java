@@ -0,0 +1,119 @@
+package minghai.skk;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 読み → 候補リストのLRUキャッシュ。
+ * 容量はエントリ数ではなく候補の総数で数えるので、候補の多い読みほど多くの枠を使う。
+ * PagedCandidateListは後から候補を取り出すたびに知らせてくるので、その分も数える。
+ * 辞書の内容が変わった時はinvalidate()かclear()を呼ぶこと。
+ */
+public class CandidateCache {
+  private class Entry implements PagedCandidateList.OnLoadListener {
+    final List<String> candidates;
+    int weight;
+    // キャッシュから外れたらfalse。その後で増えても数えない
+    boolean cached = true;
+
+    Entry(List<String> candidates) {
+      this.candidates = candidates;
+      this.weight = 1 + candidates.size();
+      if (candidates instanceof PagedCandidateList) {
+        ((PagedCandidateList) candidates).setOnLoadListener(this);
+      }
+    }
+
+    public void onLoad(PagedCandidateList list, int count) {
+      grow(this, count);
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> mMap = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+  private final int mMaxWeight;
+  private int mWeight = 0;
+
+  private int mHits = 0;
+  private int mMisses = 0;
+  private int mEvictions = 0;
+
+  public CandidateCache(int maxWeight) {
+    mMaxWeight = maxWeight;
+  }
+
+  /**
+   * キャッシュされた候補を返す。なければnull
+   */
+  public synchronized List<String> get(String key) {
+    Entry e = mMap.get(key);
+    if (e == null) {
+      mMisses++;
+      return null;
+    }
+    mHits++;
+    return e.candidates;
+  }
+
+  public synchronized void put(String key, List<String> candidates) {
+    Entry e = new Entry(candidates);
+    Entry old = mMap.put(key, e);
+    if (old != null) remove(old);
+    mWeight += e.weight;
+    // 今入れたものは一番新しいので最後まで残る
+    evict();
+  }
+
+  private synchronized void grow(Entry e, int count) {
+    if (!e.cached) return;
+    e.weight += count;
+    mWeight += count;
+    evict();
+  }
+
+  // 容量を超えた分を古いものから捨てる
+  private void evict() {
+    Iterator<Map.Entry<String, Entry>> it = mMap.entrySet().iterator();
+    while (mWeight > mMaxWeight && mMap.size() > 1 && it.hasNext()) {
+      Entry eldest = it.next().getValue();
+      it.remove();
+      remove(eldest);
+      mEvictions++;
+    }
+  }
+
+  private void remove(Entry e) {
+    mWeight -= e.weight;
+    e.cached = false;
+  }
+
+  public synchronized void invalidate(String key) {
+    Entry old = mMap.remove(key);
+    if (old != null) remove(old);
+  }
+
+  public synchronized void clear() {
+    for (Entry e : mMap.values()) {
+      e.cached = false;
+    }
+    mMap.clear();
+    mWeight = 0;
+  }
+
+  public synchronized int getHitCount() {
+    return mHits;
+  }
+
+  public synchronized int getMissCount() {
+    return mMisses;
+  }
+
+  @Override
+  public synchronized String toString() {
+    int total = mHits + mMisses;
+    return "CandidateCache: " + mMap.size() + " entries, weight " + mWeight + "/" + mMaxWeight
+      + ", hits " + mHits + ", misses " + mMisses + ", evictions " + mEvictions
+      + ", hit rate " + ((total == 0) ? 0 : mHits * 100 / total) + "%";
+  }
+}
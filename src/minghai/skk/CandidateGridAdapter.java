@@ -0,0 +1,119 @@
+package minghai.skk;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 展開した候補の一覧。候補をCOLUMNS個ずつ1行に並べ、ListViewで縦にスクロールする。
+ * 行のViewはListViewが返してくるものを使い回すので、作るのは画面に見える行の分だけ。
+ * 候補がPagedCandidateListなら、最後の方の行が見えた時に続きを取り出して行を足す。
+ */
+public class CandidateGridAdapter extends BaseAdapter
+    implements View.OnClickListener, AbsListView.OnScrollListener {
+  static final int COLUMNS = 4;
+  // 最後からこの行数以内が見えたら続きを取り出す
+  private static final int PRELOAD_ROWS = 2;
+
+  private static final List<String> EMPTY_LIST = new ArrayList<String>();
+
+  private final Context mContext;
+  private final LayoutInflater mInflater;
+  private final int mColorRecommended;
+  private final int mColorOther;
+  private SoftKeyboard mService;
+  private List<String> mCandidates = EMPTY_LIST;
+
+  public CandidateGridAdapter(Context context) {
+    mContext = context;
+    mInflater = LayoutInflater.from(context);
+    Resources r = context.getResources();
+    mColorRecommended = r.getColor(R.color.candidate_recommended);
+    mColorOther = r.getColor(R.color.candidate_other);
+  }
+
+  public void setService(SoftKeyboard service) {
+    mService = service;
+  }
+
+  public void setCandidates(List<String> candidates) {
+    mCandidates = (candidates == null) ? EMPTY_LIST : candidates;
+    notifyDataSetChanged();
+  }
+
+  public int getCount() {
+    return (mCandidates.size() + COLUMNS - 1) / COLUMNS;
+  }
+
+  /**
+   * 行の先頭の候補
+   */
+  public Object getItem(int position) {
+    return mCandidates.get(position * COLUMNS);
+  }
+
+  public long getItemId(int position) {
+    return position;
+  }
+
+  public View getView(int position, View convertView, ViewGroup parent) {
+    LinearLayout row = (LinearLayout) convertView;
+    if (row == null) row = createRow();
+
+    int choosed = (mService != null) ? mService.getChoosedIndex() : -1;
+    int size = mCandidates.size();
+    for (int c = 0; c < COLUMNS; c++) {
+      TextView cell = (TextView) row.getChildAt(c);
+      int index = position * COLUMNS + c;
+      if (index < size) {
+        cell.setText(mCandidates.get(index));
+        cell.setTextColor((index == choosed) ? mColorRecommended : mColorOther);
+        cell.setTag(Integer.valueOf(index));
+        cell.setVisibility(View.VISIBLE);
+      } else {
+        cell.setText(null);
+        cell.setTag(null);
+        cell.setVisibility(View.INVISIBLE);
+      }
+    }
+    return row;
+  }
+
+  private LinearLayout createRow() {
+    LinearLayout row = new LinearLayout(mContext);
+    row.setOrientation(LinearLayout.HORIZONTAL);
+    for (int c = 0; c < COLUMNS; c++) {
+      View cell = mInflater.inflate(R.layout.candidate_cell, row, false);
+      cell.setOnClickListener(this);
+      row.addView(cell);
+    }
+    return row;
+  }
+
+  public void onClick(View v) {
+    Object tag = v.getTag();
+    if (tag instanceof Integer && mService != null) {
+      mService.pickSuggestionManually(((Integer) tag).intValue());
+    }
+  }
+
+  public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+    if (firstVisibleItem + visibleItemCount < totalItemCount - PRELOAD_ROWS) return;
+    if (!(mCandidates instanceof PagedCandidateList)) return;
+    if (((PagedCandidateList) mCandidates).loadMore(PagedCandidateList.PAGE_SIZE) > 0) {
+      notifyDataSetChanged();
+    }
+  }
+
+  public void onScrollStateChanged(AbsListView view, int scrollState) {
+  }
+}
@@ -0,0 +1,139 @@
+package minghai.skk;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 候補の文字列を描いたビットマップのLRUキャッシュ。
+ * 文字列、太字かどうか、文字の大きさごとに1回だけdrawText()で描き、後はdrawBitmap()で済ませる。
+ * ビットマップはALPHA_8なので色はdrawBitmap()のPaintの色になり、色が変わっても描き直さない。
+ *
+ * 容量はビットマップのバイト数で数える。メモリが足りなくなったらclear()を呼ぶこと。
+ * メインスレッドからだけ使う。
+ */
+public class CandidateLabelCache {
+  // これより幅の広い文字列はキャッシュせずにそのまま描く
+  private static final int MAX_LABEL_WIDTH = 1024;
+
+  private static class Key {
+    String text;
+    boolean bold;
+    float size;
+
+    Key(String text, boolean bold, float size) {
+      set(text, bold, size);
+    }
+
+    void set(String text, boolean bold, float size) {
+      this.text = text;
+      this.bold = bold;
+      this.size = size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key k = (Key) o;
+      return bold == k.bold && size == k.size && text.equals(k.text);
+    }
+
+    @Override
+    public int hashCode() {
+      return text.hashCode() * 31 + Float.floatToIntBits(size) * 2 + (bold ? 1 : 0);
+    }
+  }
+
+  private static class Label {
+    final Bitmap bitmap;
+    // ビットマップの上端からベースラインまで
+    final int baseline;
+    final int bytes;
+
+    Label(Bitmap bitmap, int baseline) {
+      this.bitmap = bitmap;
+      this.baseline = baseline;
+      this.bytes = bitmap.getRowBytes() * bitmap.getHeight();
+    }
+  }
+
+  private final LinkedHashMap<Key, Label> mMap = new LinkedHashMap<Key, Label>(64, 0.75f, true);
+  private final int mMaxBytes;
+  private int mBytes = 0;
+  // 検索用に使い回すキー
+  private final Key mProbe = new Key("", false, 0);
+
+  private int mHits = 0;
+  private int mMisses = 0;
+
+  public CandidateLabelCache(int maxBytes) {
+    mMaxBytes = maxBytes;
+  }
+
+  /**
+   * canvas.drawText(text, x, y, paint)と同じように描く
+   */
+  public void drawText(Canvas canvas, String text, float x, float y, Paint paint) {
+    Label label = get(text, paint);
+    if (label == null) {
+      canvas.drawText(text, x, y, paint);
+      return;
+    }
+    canvas.drawBitmap(label.bitmap, x, y - label.baseline, paint);
+  }
+
+  private Label get(String text, Paint paint) {
+    mProbe.set(text, paint.isFakeBoldText(), paint.getTextSize());
+    Label label = mMap.get(mProbe);
+    if (label != null) {
+      mHits++;
+      return label;
+    }
+    mMisses++;
+
+    label = render(text, paint);
+    if (label == null) return null;
+    mMap.put(new Key(text, mProbe.bold, mProbe.size), label);
+    mBytes += label.bytes;
+
+    // 古いものから捨てる。今入れたものは一番新しいので最後まで残る
+    Iterator<Map.Entry<Key, Label>> it = mMap.entrySet().iterator();
+    while (mBytes > mMaxBytes && mMap.size() > 1 && it.hasNext()) {
+      mBytes -= it.next().getValue().bytes;
+      it.remove();
+    }
+    return label;
+  }
+
+  // 描画中のフレームがまだ使っているかもしれないので、捨てたビットマップはrecycle()しない
+  private static Label render(String text, Paint paint) {
+    int width = (int) Math.ceil(paint.measureText(text)) + 1;
+    int baseline = (int) Math.ceil(-paint.ascent());
+    int height = baseline + (int) Math.ceil(paint.descent()) + 1;
+    if (width <= 1 || width > MAX_LABEL_WIDTH || height <= 1) return null;
+
+    Bitmap bitmap;
+    try {
+      bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+    } catch (OutOfMemoryError e) {
+      return null;
+    }
+    new Canvas(bitmap).drawText(text, 0, baseline, paint);
+    return new Label(bitmap, baseline);
+  }
+
+  public void clear() {
+    mMap.clear();
+    mBytes = 0;
+  }
+
+  @Override
+  public String toString() {
+    return "CandidateLabelCache: " + mMap.size() + " labels, " + mBytes + "/" + mMaxBytes
+      + " bytes, hits " + mHits + ", misses " + mMisses;
+  }
+}
@@ -0,0 +1,107 @@
+package minghai.skk;
+
+import android.graphics.Paint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 候補を横一列に並べた時の位置。各候補の幅は最初に位置を聞かれた時に1回だけ測り、
+ * 左端の位置を累積和として持つ。x座標から候補を引くのは二分探索なので、
+ * 候補が何百個あっても1フレームで測ったり調べたりするのは画面に見える分だけで済む。
+ *
+ * 候補のリストは後ろに追加されてもよい(前の候補の位置は変わらない)。
+ */
+class CandidateLayout {
+  private static final List<String> EMPTY_LIST = new ArrayList<String>();
+
+  private final Paint mPaint;
+  private final int mGap;
+
+  private List<String> mWords = EMPTY_LIST;
+  // mX[i]はi番目の候補の左端。mX[mMeasured]は測り終えた最後の候補の右端
+  private int[] mX = new int[64];
+  private int mMeasured = 0;
+
+  /**
+   * @param gap 候補の左右の余白
+   */
+  CandidateLayout(Paint paint, int gap) {
+    mPaint = paint;
+    mGap = gap;
+  }
+
+  void setWords(List<String> words) {
+    mWords = (words == null) ? EMPTY_LIST : words;
+    mMeasured = 0;
+  }
+
+  int size() {
+    return mWords.size();
+  }
+
+  // 0からcount-1番目の候補まで測る
+  private void measure(int count) {
+    count = Math.min(count, mWords.size());
+    if (count <= mMeasured) return;
+    if (count >= mX.length) {
+      int[] x = new int[Math.max(mX.length * 2, count + 1)];
+      System.arraycopy(mX, 0, x, 0, mMeasured + 1);
+      mX = x;
+    }
+    for (int i = mMeasured; i < count; i++) {
+      mX[i + 1] = mX[i] + (int) mPaint.measureText(mWords.get(i)) + mGap * 2;
+    }
+    mMeasured = count;
+  }
+
+  /**
+   * index番目の候補の左端。indexが候補の数なら最後の候補の右端
+   */
+  int getLeft(int index) {
+    measure(index);
+    return mX[Math.min(index, mMeasured)];
+  }
+
+  int getRight(int index) {
+    return getLeft(index + 1);
+  }
+
+  int getWidth(int index) {
+    return getRight(index) - getLeft(index);
+  }
+
+  /**
+   * 全ての候補を並べた幅
+   */
+  int getTotalWidth() {
+    measure(mWords.size());
+    return mX[mMeasured];
+  }
+
+  /**
+   * xの位置にある候補。どの候補にも当たらなければ-1
+   */
+  int indexAt(int x) {
+    if (x < 0) return -1;
+    // xを越えるところまで測る
+    int size = mWords.size();
+    while (mMeasured < size && mX[mMeasured] <= x) {
+      measure(Math.min(size, mMeasured * 2 + 8));
+    }
+    if (x >= mX[mMeasured]) return -1;
+
+    // mX[lo] <= x < mX[lo + 1]となるloを探す
+    int lo = 0;
+    int hi = mMeasured;
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+      if (mX[mid] <= x) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+}
@@ -24,8 +24,8 @@ import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.AttributeSet;
-import android.util.Log;
 import android.view.GestureDetector;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -34,8 +34,10 @@ import android.view.View;
 import android.view.View.MeasureSpec;
 import android.view.ViewGroup.LayoutParams;
 import android.widget.PopupWindow;
+import android.widget.Scroller;
 import android.widget.TextView;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -53,11 +55,16 @@ public class CandidateView extends View {
     
     private Rect mBgPadding;
 
-    private static final int MAX_SUGGESTIONS = 150;
-    private static final int SCROLL_PIXELS = 20;
+    // 左右のボタンでスクロールする時間(ms)。フレームレートによらず同じ時間で着く。
+    // 以前の1フレーム20pxずつ動かす方法では300pxに15フレーム(60fpsで250ms、30fpsで500ms)
+    // かかったが、これなら60fpsで13フレーム、30fpsで6フレームで、距離によらない
+    private static final int SCROLL_DURATION = 200;
     
-    private int[] mWordWidth = new int[MAX_SUGGESTIONS];
-    private int[] mWordX = new int[MAX_SUGGESTIONS];
+    // 候補の位置。幅は1回だけ測る
+    private CandidateLayout mLayout;
+    // 候補の文字列を描いたビットマップ。スクロール中は描き直さない
+    private static final int LABEL_CACHE_BYTES = 256 * 1024;
+    private final CandidateLabelCache mLabelCache = new CandidateLabelCache(LABEL_CACHE_BYTES);
 
     private static final int X_GAP = 5;
     
@@ -72,9 +79,14 @@ public class CandidateView extends View {
     private int mVerticalPadding;
     private Paint mPaint;
 
-    private int mTargetScrollX;
-    
-    private int mTotalWidth;
+    private Scroller mScroller;
+    // スクロール1回あたりに描いたフレーム数を数える
+    private int mScrolls;
+    private int mScrollFrames;
+    private long mScrollStart;
+    private int mLastScrollFrames;
+    private int mLastScrollDistance;
+    private long mLastScrollTime;
     
     private GestureDetector mGestureDetector;
 
@@ -148,13 +160,15 @@ public class CandidateView extends View {
         mPaint.setAntiAlias(true);
         mPaint.setTextSize(r.getDimensionPixelSize(R.dimen.candidate_font_height));
         mPaint.setStrokeWidth(0);
+        mLayout = new CandidateLayout(mPaint, X_GAP);
+        mScroller = new Scroller(context);
         
         mGestureDetector = new GestureDetector(new GestureDetector.SimpleOnGestureListener() {
 
           @Override
           public void onLongPress(MotionEvent me) {
               if (mSuggestions.size() > 0) {
-                  if (me.getX() + mScrollX < mWordWidth[0] && mScrollX < 10) {
+                  if (me.getX() + mScrollX < mLayout.getWidth(0) && mScrollX < 10) {
                       longPressFirstWord();
                   }
               }
@@ -167,15 +181,17 @@ public class CandidateView extends View {
             mScrolled = ScrollMode.SCROLLED;
             mScrollX = getScrollX();
             mScrollX += (int) distanceX;
+            fillTo(mScrollX + width);
             if (mScrollX < 0) {
               mScrollX = 0;
             }
-            if (distanceX > 0 && mScrollX + width > mTotalWidth) {
+            if (distanceX > 0 && mScrollX + width > mLayout.getTotalWidth()) {
               mScrollX -= (int) distanceX;
             }
-            mTargetScrollX = mScrollX;
+            // 指にはそのままついて行く
+            mScroller.forceFinished(true);
+            scrollTo(mScrollX, getScrollY());
             hidePreview();
-            invalidate();
             return true;
           }
         });
@@ -198,7 +214,7 @@ public class CandidateView extends View {
     
     @Override
     public int computeHorizontalScrollRange() {
-        return mTotalWidth;
+        return mLayout.getTotalWidth();
     }
 
     @Override
@@ -218,15 +234,12 @@ public class CandidateView extends View {
     }
 
     /**
-     * If the canvas is null, then only touch calculations are performed to pick the target
-     * candidate.
+     * 見えている範囲の候補だけを描く
      */
     @Override
     protected void onDraw(Canvas canvas) {
-        if (canvas != null) {
-            super.onDraw(canvas);
-        }
-        mTotalWidth = 0;
+        long start = KeyLatencyTracer.ENABLED ? System.nanoTime() : 0;
+        super.onDraw(canvas);
         if (mSuggestions == null) return;
 
         Drawable bg = getBackground();
@@ -234,153 +247,171 @@ public class CandidateView extends View {
         	bg.getPadding(mBgPadding);
         }
 
-        int x = 0;
+        final CandidateLayout layout = mLayout;
         final int height = getHeight();
         final Rect bgPadding = mBgPadding;
         final Paint paint = mPaint;
-        final int touchX = mTouchX;
         final int scrollX = getScrollX();
+        final int right = scrollX + getWidth();
+        fillTo(right);
         final ScrollMode scrolled = mScrolled;
-        final boolean typedWordValid = mTypedWordValid;
         final int y = (int) (((height - paint.getTextSize()) / 2) - paint.ascent());
-        
-        int count = mSuggestions.size();
-        if (count> MAX_SUGGESTIONS) count = MAX_SUGGESTIONS; 
-        
-        for (int i = 0; i < count; i++) {
-            String suggestion = mSuggestions.get(i);
-            float textWidth = paint.measureText(suggestion);
-            final int wordWidth = (int) textWidth + X_GAP * 2;
-
-            mWordX[i] = x;
-            mWordWidth[i] = wordWidth;
-            paint.setColor(mColorNormal);
-            if (touchX + scrollX >= x && touchX + scrollX < x + wordWidth && scrolled != ScrollMode.SCROLLED) {
-                if (canvas != null) {
-                    canvas.translate(x, 0);
-                    mSelectionHighlight.setBounds(0, bgPadding.top, wordWidth, height);
-                    mSelectionHighlight.draw(canvas);
-                    canvas.translate(-x, 0);
-                }
-                mSelectedIndex = i;
+        final int choosedIndex = mService.getChoosedIndex();
+
+        final int touched = (scrolled != ScrollMode.SCROLLED) ? updateSelectedIndex() : -1;
+
+        final int count = layout.size();
+        int first = layout.indexAt(scrollX);
+        if (first < 0) first = count;
+        for (int i = first; i < count; i++) {
+            final int x = layout.getLeft(i);
+            if (x >= right) break;
+            final int wordWidth = layout.getRight(i) - x;
+
+            if (i == touched) {
+                canvas.translate(x, 0);
+                mSelectionHighlight.setBounds(0, bgPadding.top, wordWidth, height);
+                mSelectionHighlight.draw(canvas);
+                canvas.translate(-x, 0);
             }
 
-            if (canvas != null) {
-                if (i == mService.mChoosedIndex) { 
-                    paint.setFakeBoldText(true);
-                    paint.setColor(mColorRecommended);
-                } else {
-                    paint.setColor(mColorOther);
-                }
-                canvas.drawText(suggestion, x + X_GAP, y, paint);
-                paint.setColor(mColorOther); 
-                canvas.drawLine(x + wordWidth + 0.5f, bgPadding.top, 
-                        x + wordWidth + 0.5f, height + 1, paint);
-                paint.setFakeBoldText(false);
+            if (i == choosedIndex) {
+                paint.setFakeBoldText(true);
+                paint.setColor(mColorRecommended);
+            } else {
+                paint.setColor(mColorOther);
             }
-            x += wordWidth;
+            mLabelCache.drawText(canvas, mSuggestions.get(i), x + X_GAP, y, paint);
+            paint.setColor(mColorOther); 
+            canvas.drawLine(x + wordWidth + 0.5f, bgPadding.top, 
+                    x + wordWidth + 0.5f, height + 1, paint);
+            paint.setFakeBoldText(false);
         }
-        mTotalWidth = x;
         int tx = getScrollX();
-        int cx = mWordX[mService.mChoosedIndex];
-
-        if (scrolled == ScrollMode.SCROLLED && mTargetScrollX != tx) {
-            scrollToTarget();
+        int cx = layout.getLeft(Math.min(choosedIndex, count));
 
-        } else if (scrolled == ScrollMode.NEXT && cx != tx) {
+        if (scrolled == ScrollMode.NEXT && cx != tx) {
         	scrollTo(cx, getScrollY());
         	invalidate();
           mScrolled = ScrollMode.STOP;
         }
+        if (KeyLatencyTracer.ENABLED) KeyLatencyTracer.record(KeyLatencyTracer.RENDER, start);
+    }
+
+    // xの位置まで候補が並ぶよう、続きの候補があれば取り出す
+    private void fillTo(int x) {
+        if (!(mSuggestions instanceof PagedCandidateList)) return;
+        PagedCandidateList paged = (PagedCandidateList) mSuggestions;
+        while (mLayout.getTotalWidth() < x) {
+            if (paged.loadMore(PagedCandidateList.PAGE_SIZE) == 0) break;
+        }
+    }
+
+    // 触っている位置の候補を選ぶ。候補に触っていなければ-1
+    private int updateSelectedIndex() {
+        if (mTouchX == OUT_OF_BOUNDS) return -1;
+        int index = mLayout.indexAt(mTouchX + getScrollX());
+        if (index >= 0) mSelectedIndex = index;
+        return index;
     }
     
-    private void scrollToTarget() {
-        int sx = getScrollX();
-        if (mTargetScrollX > sx) {
-            sx += SCROLL_PIXELS;
-            if (sx >= mTargetScrollX) {
-                sx = mTargetScrollX;
-                requestLayout();
-            }
+    /**
+     * 描画のたびに呼ばれる。経過時間に応じた位置までスクロールを進める。
+     * scrollTo()が自分だけを描き直すので、アニメーション中はレイアウトをやり直さず、
+     * 左右のボタンの表示は着いてから1回だけ更新する
+     */
+    @Override
+    public void computeScroll() {
+        if (!mScroller.computeScrollOffset()) return;
+        mScrollFrames++;
+        scrollTo(mScroller.getCurrX(), getScrollY());
+        mScrollX = getScrollX();
+        if (mScroller.isFinished()) {
+            mLastScrollFrames = mScrollFrames;
+            mLastScrollDistance = Math.abs(mScroller.getFinalX() - mScroller.getStartX());
+            mLastScrollTime = SystemClock.uptimeMillis() - mScrollStart;
+            requestLayout();
         } else {
-            sx -= SCROLL_PIXELS;
-            if (sx <= mTargetScrollX) {
-                sx = mTargetScrollX;
-                requestLayout();
-            }
+            invalidate();
         }
-        scrollTo(sx, getScrollY());
+    }
+
+    private void smoothScrollTo(int x) {
+        int sx = getScrollX();
+        mScroller.forceFinished(true);
+        mScroller.startScroll(sx, getScrollY(), x - sx, 0, SCROLL_DURATION);
+        mScrolls++;
+        mScrollFrames = 0;
+        mScrollStart = SystemClock.uptimeMillis();
         invalidate();
     }
     
     public void setSuggestions(List<String> suggestions, boolean completions, boolean typedWordValid) {
         clear();
+        // 候補は必要になった分だけ取り出すのでコピーしない
         if (suggestions != null) {
-            mSuggestions = new ArrayList<String>(suggestions);
+            mSuggestions = suggestions;
         }
+        mLayout.setWords(mSuggestions);
         mTypedWordValid = typedWordValid;
+        mScroller.forceFinished(true);
         scrollTo(0, 0);
         mScrollX = 0;
-        mTargetScrollX = 0;
-
-        // Compute the total width
-        onDraw(null);
         invalidate();
         requestLayout();
     }
 
     public void scrollPrev() {
-      Log.d("TEST", "scrollPrev(): mSuggestion.size() = " + mSuggestions.size() + " mScrollX = " + mScrollX + " getWidth() = " + getWidth());
       mScrollX = getScrollX();
-      int i = 0;
-        final int count = mSuggestions.size();
-        int firstItem = 0; // Actually just before the first item, if at the boundary
-        while (i < count) {
-            if (mWordX[i] < mScrollX 
-                    && mWordX[i] + mWordWidth[i] >= mScrollX - 1) {
-                firstItem = i;
-                break;
-            }
-            i++;
-        }
-        int leftEdge = mWordX[firstItem] + mWordWidth[firstItem] - getWidth();
+        // Actually just before the first item, if at the boundary
+        int firstItem = mLayout.indexAt(mScrollX - 1);
+        if (firstItem < 0) firstItem = 0;
+        int leftEdge = mLayout.getRight(firstItem) - getWidth();
         if (leftEdge < 0) leftEdge = 0;
         updateScrollPosition(leftEdge);
-        Log.d("TEST", "ScrollPrev() Finished: leftEdge = " + leftEdge);
     }
     
     public void scrollNext() {
-      Log.d("TEST", "scrollNext): mSuggestion.size() = " + mSuggestions.size() + " mScrollX = " + mScrollX);
-        int i = 0;
         mScrollX = getScrollX();
         int targetX = mScrollX;
-        final int count = mSuggestions.size();
         int rightEdge = mScrollX + getWidth();
-        while (i < count) {
-            if (mWordX[i] <= rightEdge &&
-                    mWordX[i] + mWordWidth[i] >= rightEdge) {
-                targetX = Math.min(mWordX[i], mTotalWidth - getWidth());
-                break;
-            }
-            i++;
+        fillTo(rightEdge + getWidth());
+        int i = mLayout.indexAt(rightEdge);
+        if (i >= 0) {
+            targetX = Math.min(mLayout.getLeft(i), mLayout.getTotalWidth() - getWidth());
         }
         updateScrollPosition(targetX);
-        Log.d("TEST", "scrollNext() Finished: targetX = " + targetX);
     }
 
     private void updateScrollPosition(int targetX) {
       mScrollX = getScrollX();
         if (targetX != mScrollX) {
-            // TODO: Animate
-            mTargetScrollX = targetX;
-            requestLayout();
-            invalidate();
+            smoothScrollTo(targetX);
             mScrolled = ScrollMode.SCROLLED;
         }
     }
     
+    /**
+     * メモリが足りない時に呼ぶ。描いた候補のキャッシュを捨てる
+     */
+    public void trimMemory() {
+        mLabelCache.clear();
+    }
+
+    public List<String> getSuggestions() {
+        return mSuggestions;
+    }
+
+    public void dump(PrintWriter out) {
+        out.println("CandidateView: " + mScrolls + " scrolls, last one moved " + mLastScrollDistance
+                + "px in " + mLastScrollFrames + " frames, " + mLastScrollTime + "ms (planned "
+                + SCROLL_DURATION + "ms)");
+        out.println(mLabelCache);
+    }
+
     public void clear() {
         mSuggestions = EMPTY_LIST;
+        mLayout.setWords(mSuggestions);
         mTouchX = OUT_OF_BOUNDS;
         mSelectedIndex = -1;
         invalidate();
@@ -436,8 +467,7 @@ public class CandidateView extends View {
      */
     public void takeSuggestionAt(float x) {
         mTouchX = (int) x;
-        // To detect candidate
-        onDraw(null);
+        updateSelectedIndex();
         if (mSelectedIndex >= 0) {
             mService.pickSuggestionManually(mSelectedIndex);
         }
@@ -469,7 +499,7 @@ public class CandidateView extends View {
                       + mPreviewText.getPaddingLeft() + mPreviewText.getPaddingRight();
               final int popupHeight = mPreviewText.getMeasuredHeight();
               //mPreviewText.setVisibility(INVISIBLE);
-              mPopupPreviewX = mWordX[wordIndex] - mPreviewText.getPaddingLeft() - mScrollX;
+              mPopupPreviewX = mLayout.getLeft(wordIndex) - mPreviewText.getPaddingLeft() - mScrollX;
               mPopupPreviewY = - popupHeight;
               mHandler.removeMessages(MSG_REMOVE_PREVIEW);
               int [] offsetInWindow = new int[2];
@@ -22,14 +22,26 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
 import android.widget.LinearLayout;
+import android.widget.ListView;
 
+import java.util.List;
+
+/**
+ * 候補の一列と左右のスクロールボタン、展開ボタンを並べる。
+ * 展開すると一列の下に候補を何行にも並べた一覧(CandidateGridAdapter)を開く。
+ */
 public class CandidateViewContainer extends LinearLayout implements OnTouchListener {
 
     private View mButtonLeft;
     private View mButtonRight;
     private View mButtonLeftLayout;
     private View mButtonRightLayout;
+    private View mButtonExpand;
+    private View mButtonExpandLayout;
     private CandidateView mCandidates;
+    private ListView mGrid;
+    private CandidateGridAdapter mGridAdapter;
+    private boolean mExpanded = false;
     
     public CandidateViewContainer(Context screen, AttributeSet attrs) {
         super(screen, attrs);
@@ -47,7 +59,59 @@ public class CandidateViewContainer extends LinearLayout implements OnTouchListe
             if (mButtonRight != null) {
                 mButtonRight.setOnTouchListener(this);
             }
+            mButtonExpandLayout = findViewById(R.id.candidate_expand_parent);
+            mButtonExpand = findViewById(R.id.candidate_expand);
+            if (mButtonExpand != null) {
+                mButtonExpand.setOnTouchListener(this);
+            }
             mCandidates = (CandidateView) findViewById(R.id.candidates);
+            mGrid = (ListView) findViewById(R.id.candidate_grid);
+            if (mGrid != null) {
+                mGridAdapter = new CandidateGridAdapter(getContext());
+                mGrid.setAdapter(mGridAdapter);
+                mGrid.setOnScrollListener(mGridAdapter);
+            }
+        }
+    }
+
+    public void setService(SoftKeyboard service) {
+        if (mGridAdapter != null) mGridAdapter.setService(service);
+    }
+
+    /**
+     * 候補の一覧を開く・閉じる。開く時に作るのは見えている行の分だけ
+     */
+    public void setExpanded(boolean expanded) {
+        if (mGrid == null || mExpanded == expanded) return;
+        mExpanded = expanded;
+        mGridAdapter.setCandidates(expanded ? mCandidates.getSuggestions() : null);
+        if (expanded) mGrid.setSelection(0);
+        mGrid.setVisibility(expanded ? VISIBLE : GONE);
+        requestLayout();
+    }
+
+    /**
+     * 一列の候補が変わったら呼ぶ。候補がなくなったら一覧を閉じる
+     */
+    public void onSuggestionsChanged() {
+        if (!mExpanded) return;
+        List<String> suggestions = mCandidates.getSuggestions();
+        if (suggestions.size() == 0) {
+            setExpanded(false);
+        } else {
+            mGridAdapter.setCandidates(suggestions);
+        }
+    }
+
+    /**
+     * 選択中の候補が変わったら呼ぶ。一覧が開いていれば選択中の候補が見えるようにする
+     */
+    public void choose(int index) {
+        if (!mExpanded) return;
+        mGridAdapter.notifyDataSetChanged();
+        int row = index / CandidateGridAdapter.COLUMNS;
+        if (row < mGrid.getFirstVisiblePosition() || row > mGrid.getLastVisiblePosition()) {
+            mGrid.setSelection(row);
         }
     }
 
@@ -65,6 +129,11 @@ public class CandidateViewContainer extends LinearLayout implements OnTouchListe
             if (mButtonRightLayout != null) {
                 mButtonRightLayout.setVisibility(rightVisible ? VISIBLE : GONE);
             }
+            // 一列に収まらない時だけ展開できる
+            if (mButtonExpandLayout != null) {
+                mButtonExpandLayout.setVisibility(
+                        (leftVisible || rightVisible || mExpanded) ? VISIBLE : GONE);
+            }
         }
         super.requestLayout();
     }
@@ -75,6 +144,8 @@ public class CandidateViewContainer extends LinearLayout implements OnTouchListe
                 mCandidates.scrollNext();
             } else if (v == mButtonLeft) {
                 mCandidates.scrollPrev();
+            } else if (v == mButtonExpand) {
+                setExpanded(!mExpanded);
             }
         }
         return false;
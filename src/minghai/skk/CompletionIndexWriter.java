@@ -0,0 +1,280 @@
+package minghai.skk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * 読みの補完のための索引を作る。読みの先頭depth文字までの各接頭辞について、
+ * その接頭辞で始まるより長い読みのうちスコアの高いsize個を前もって選んでおく。
+ * 補完は接頭辞の長さの表を1回二分探索するだけで済む。
+ *
+ * 読みは昇順に渡されるので、同じ接頭辞を持つ読みは連続している。接頭辞の長さごとに
+ * 今の接頭辞の上位size個だけをメモリに持ち、接頭辞が変わったら一時ファイルに書き出す。
+ * 送りありの読みは補完に出さない。
+ *
+ * 各補完にはスコアも入れておく。LayeredDictionaryは辞書ごとの補完をこのスコアで
+ * 混ぜるので、ユーザー辞書もscore()で同じ尺度のスコアを付ける。
+ *
+ * セクションの形式 (MappedDictionary参照):
+ * <pre>
+ *   completion depth  : int[depth + 1]   長さdの接頭辞はprefix[depth[d-1]]からprefix[depth[d]]の前まで
+ *   completion prefix : int[prefixes]    接頭辞を持つ最初の読みの番号 (接頭辞の昇順)
+ *   completion index  : int[prefixes + 1] completion list内の位置
+ *   completion list   : int[]            補完する読みの番号 (スコアの高い順)
+ *   completion score  : long[]           completion listの各読みのスコア
+ * </pre>
+ */
+class CompletionIndexWriter {
+  static final int DEFAULT_DEPTH = 4;
+  static final int DEFAULT_SIZE = 6;
+
+  /**
+   * 補完の順序
+   */
+  enum Scoring {
+    /** 候補の多い読みから。同じなら短い読みから */
+    CANDIDATES,
+    /** 短い読みから。同じなら候補の多い読みから */
+    LENGTH
+  }
+
+  private final int mDepth;
+  private final int mSize;
+  private final Scoring mScoring;
+
+  // 以下は接頭辞の長さ-1で引く
+  private final String[] mPrefix;
+  private final int[] mFirst;
+  private final int[][] mTop;
+  private final long[][] mScores;
+  private final int[] mFilled;
+  private final File[] mFiles;
+  private final DataOutputStream[] mStreams;
+  private final int[] mGroups;
+  private int mListLength = 0;
+
+  CompletionIndexWriter(File dir, int depth, int size, Scoring scoring) throws IOException {
+    if (depth < 0 || size < 1) throw new IllegalArgumentException("depth " + depth + ", size " + size);
+    mDepth = depth;
+    mSize = size;
+    mScoring = scoring;
+    mPrefix = new String[depth];
+    mFirst = new int[depth];
+    mTop = new int[depth][size];
+    mScores = new long[depth][size];
+    mFilled = new int[depth];
+    mFiles = new File[depth];
+    mStreams = new DataOutputStream[depth];
+    mGroups = new int[depth];
+    try {
+      for (int d = 0; d < depth; d++) {
+        mFiles[d] = File.createTempFile("skk", ".c" + (d + 1), dir);
+        mStreams[d] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFiles[d]), 64 * 1024));
+      }
+    } catch (IOException e) {
+      abort();
+      throw e;
+    }
+  }
+
+  int getDepth() {
+    return mDepth;
+  }
+
+  int getSize() {
+    return mSize;
+  }
+
+  Scoring getScoring() {
+    return mScoring;
+  }
+
+  /**
+   * 候補がcandidates個ある長さlengthの読みのスコア。大きいほど先に補完する
+   */
+  static long score(Scoring scoring, int length, int candidates) {
+    long len = 0xFFFF - Math.min(length, 0xFFFF);
+    if (scoring == Scoring.LENGTH) return (len << 32) | candidates;
+    return ((long) candidates << 16) | len;
+  }
+
+  /**
+   * index番目の読みを追加する。読みは昇順に渡すこと
+   */
+  void add(int index, String key, int candidates) throws IOException {
+    if (MappedDictionary.isOkuriKey(key)) return;
+    int len = key.length();
+    long score = score(mScoring, len, candidates);
+
+    for (int d = 0; d < mDepth && d < len; d++) {
+      if (mPrefix[d] == null || !key.startsWith(mPrefix[d])) {
+        flush(d);
+        mPrefix[d] = key.substring(0, d + 1);
+        mFirst[d] = index;
+      }
+      // 接頭辞そのものは補完しない
+      if (len > d + 1) offer(d, index, score);
+    }
+  }
+
+  // 上位mSize個をスコアの降順に保つ。同点なら先に来た読みを優先する
+  private void offer(int d, int index, long score) {
+    int[] top = mTop[d];
+    long[] scores = mScores[d];
+    int n = mFilled[d];
+    if (n == mSize && scores[n - 1] >= score) return;
+
+    int i = (n < mSize) ? n++ : n - 1;
+    while (i > 0 && scores[i - 1] < score) {
+      top[i] = top[i - 1];
+      scores[i] = scores[i - 1];
+      i--;
+    }
+    top[i] = index;
+    scores[i] = score;
+    mFilled[d] = n;
+  }
+
+  // 1つの接頭辞分を {最初の読みの番号, 補完の数, 補完..., スコア...} として書く。補完がなければ書かない
+  private void flush(int d) throws IOException {
+    int n = mFilled[d];
+    if (mPrefix[d] != null && n > 0) {
+      DataOutputStream out = mStreams[d];
+      out.writeInt(mFirst[d]);
+      out.writeInt(n);
+      for (int i = 0; i < n; i++) {
+        out.writeInt(mTop[d][i]);
+      }
+      for (int i = 0; i < n; i++) {
+        out.writeLong(mScores[d][i]);
+      }
+      mGroups[d]++;
+      mListLength += n;
+    }
+    mPrefix[d] = null;
+    mFilled[d] = 0;
+  }
+
+  /**
+   * 残りを書き出し、各セクションの大きさ(バイト)を返す
+   */
+  int[] close() throws IOException {
+    int prefixes = 0;
+    for (int d = 0; d < mDepth; d++) {
+      flush(d);
+      mStreams[d].close();
+      prefixes += mGroups[d];
+    }
+    return new int[] { 4 * (mDepth + 1), 4 * prefixes, 4 * (prefixes + 1), 4 * mListLength, 8 * mListLength };
+  }
+
+  int getPrefixCount() {
+    int prefixes = 0;
+    for (int d = 0; d < mDepth; d++) {
+      prefixes += mGroups[d];
+    }
+    return prefixes;
+  }
+
+  /**
+   * close()の後に5つのセクションを順に書く
+   */
+  void writeTo(DataOutputStream out) throws IOException {
+    int start = 0;
+    out.writeInt(start);
+    for (int d = 0; d < mDepth; d++) {
+      start += mGroups[d];
+      out.writeInt(start);
+    }
+
+    // 一時ファイルを4回読み、接頭辞、位置、補完、スコアの順に書く
+    for (int d = 0; d < mDepth; d++) {
+      DataInputStream in = open(d);
+      try {
+        for (int g = 0; g < mGroups[d]; g++) {
+          out.writeInt(in.readInt());
+          skip(in, in.readInt() * 3);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    int offset = 0;
+    out.writeInt(offset);
+    for (int d = 0; d < mDepth; d++) {
+      DataInputStream in = open(d);
+      try {
+        for (int g = 0; g < mGroups[d]; g++) {
+          in.readInt();
+          int n = in.readInt();
+          skip(in, n * 3);
+          offset += n;
+          out.writeInt(offset);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    for (int d = 0; d < mDepth; d++) {
+      DataInputStream in = open(d);
+      try {
+        for (int g = 0; g < mGroups[d]; g++) {
+          in.readInt();
+          int n = in.readInt();
+          for (int i = 0; i < n; i++) {
+            out.writeInt(in.readInt());
+          }
+          skip(in, n * 2);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    for (int d = 0; d < mDepth; d++) {
+      DataInputStream in = open(d);
+      try {
+        for (int g = 0; g < mGroups[d]; g++) {
+          in.readInt();
+          int n = in.readInt();
+          skip(in, n);
+          for (int i = 0; i < n; i++) {
+            out.writeLong(in.readLong());
+          }
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  // skipBytes()は全部読み飛ばすとは限らないので1つずつ読む
+  private static void skip(DataInputStream in, int ints) throws IOException {
+    for (int i = 0; i < ints; i++) {
+      in.readInt();
+    }
+  }
+
+  private DataInputStream open(int d) throws IOException {
+    return new DataInputStream(new BufferedInputStream(new FileInputStream(mFiles[d]), 64 * 1024));
+  }
+
+  /**
+   * 一時ファイルを削除する
+   */
+  void abort() {
+    for (int d = 0; d < mDepth; d++) {
+      try {
+        if (mStreams[d] != null) mStreams[d].close();
+      } catch (IOException e) {
+        // 消すだけなので無視
+      }
+      if (mFiles[d] != null) mFiles[d].delete();
+    }
+  }
+}
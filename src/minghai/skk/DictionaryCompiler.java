@@ -0,0 +1,308 @@
+package minghai.skk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * SKK-JISYO形式のテキスト辞書をSoftKeyboardが読む辞書ファイルに変換するコマンド。
+ * Android SDKを使わないので、デスクトップのJVMでそのまま動く。
+ *
+ * <pre>
+ * java -cp bin minghai.skk.DictionaryCompiler [-e euc-jp|utf-8] [-r エントリ数]
+ *     [-k 補完の数] [-d 補完索引の深さ] [-s candidates|length] SKK-JISYO.L [SKK-JISYO.jinmei ...] skk_dict.bin
+ * </pre>
+ *
+ * 入力は一定数ごとにソートして一時ファイル(ラン)に書き出し、最後にk-wayマージで
+ * 出力するので、辞書の大きさに関わらずメモリ使用量は一定になる。
+ * 同じ読みが複数回現れた場合は候補を先に指定した辞書の順でまとめる。
+ *
+ * -k, -d, -sは補完索引(CompletionIndexWriter)の設定。読みの先頭-d文字までの
+ * 接頭辞ごとに、-sの順で上位-k個の読みを辞書に入れておく。
+ */
+public class DictionaryCompiler {
+  static final String DEFAULT_ENCODING = "EUC-JP";
+  static final int DEFAULT_RUN_SIZE = 50000;
+
+  private String mEncoding = null;
+  private int mRunSize = DEFAULT_RUN_SIZE;
+  private int mCompletionSize = CompletionIndexWriter.DEFAULT_SIZE;
+  private int mCompletionDepth = CompletionIndexWriter.DEFAULT_DEPTH;
+  private CompletionIndexWriter.Scoring mScoring = CompletionIndexWriter.Scoring.CANDIDATES;
+
+  private long mLines = 0;
+  private long mEntries = 0;
+  private long mBytes = 0;
+
+  public static void main(String[] args) {
+    DictionaryCompiler compiler = new DictionaryCompiler();
+    List<File> inputs = new ArrayList<File>();
+
+    int i = 0;
+    for (; i < args.length && args[i].startsWith("-"); i++) {
+      if (args[i].equals("-e") && i + 1 < args.length) {
+        compiler.mEncoding = args[++i];
+      } else if (args[i].equals("-r") && i + 1 < args.length) {
+        compiler.mRunSize = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-k") && i + 1 < args.length) {
+        compiler.mCompletionSize = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-d") && i + 1 < args.length) {
+        compiler.mCompletionDepth = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-s") && i + 1 < args.length) {
+        compiler.mScoring = CompletionIndexWriter.Scoring.valueOf(args[++i].toUpperCase());
+      } else {
+        usage();
+      }
+    }
+    for (; i < args.length - 1; i++) {
+      inputs.add(new File(args[i]));
+    }
+    if (inputs.isEmpty()) usage();
+    File output = new File(args[args.length - 1]);
+
+    try {
+      compiler.compile(inputs, output);
+    } catch (IOException e) {
+      System.err.println(e);
+      System.exit(1);
+    }
+  }
+
+  private static void usage() {
+    System.err.println("usage: DictionaryCompiler [-e encoding] [-r run size] [-k completions] [-d completion depth]"
+        + " [-s candidates|length] SKK-JISYO... output");
+    System.exit(2);
+  }
+
+  void compile(List<File> inputs, File output) throws IOException {
+    long start = System.currentTimeMillis();
+    File dir = output.getAbsoluteFile().getParentFile();
+    List<File> runs = new ArrayList<File>();
+
+    try {
+      ArrayList<String[]> entries = new ArrayList<String[]>(mRunSize);
+      for (File input : inputs) {
+        InputStream in = new BufferedInputStream(new FileInputStream(input), 64 * 1024);
+        try {
+          String encoding = (mEncoding != null) ? mEncoding : detectEncoding(in);
+          BufferedReader reader = new BufferedReader(new InputStreamReader(in, encoding));
+          String line;
+          while ((line = reader.readLine()) != null) {
+            mLines++;
+            String[] entry = parseLine(line);
+            if (entry == null) continue;
+            entries.add(entry);
+            mEntries++;
+            if (entries.size() >= mRunSize) {
+              runs.add(writeRun(entries, dir));
+              entries.clear();
+            }
+          }
+        } finally {
+          in.close();
+        }
+        mBytes += input.length();
+      }
+      if (!entries.isEmpty()) runs.add(writeRun(entries, dir));
+      entries = null;
+
+      long sorted = System.currentTimeMillis();
+      int count = mergeRuns(runs, output);
+      long end = System.currentTimeMillis();
+
+      long elapsed = Math.max(end - start, 1);
+      System.err.println(mLines + " lines, " + runs.size() + " runs sorted in " + (sorted - start) + "ms, "
+          + count + " entries merged in " + (end - sorted) + "ms");
+      System.err.println(String.format("%.1f MB/s, %d entries/s, %d bytes written to %s",
+          mBytes / 1024.0 / 1024.0 * 1000 / elapsed, count * 1000L / elapsed, output.length(), output));
+    } finally {
+      for (File run : runs) {
+        run.delete();
+      }
+    }
+  }
+
+  // 先頭行の ";; -*- coding: utf-8 -*-" を見てエンコーディングを決める。なければEUC-JP
+  private static String detectEncoding(InputStream in) throws IOException {
+    in.mark(1024);
+    StringBuilder first = new StringBuilder();
+    int c;
+    while ((c = in.read()) != -1 && c != '\n' && first.length() < 1024) {
+      first.append((char) c);
+    }
+    in.reset();
+
+    String line = first.toString().toLowerCase();
+    int i = line.indexOf("coding:");
+    if (i < 0) return DEFAULT_ENCODING;
+    String coding = line.substring(i + "coding:".length()).replace("-*-", "").trim();
+    if (coding.startsWith("utf-8") || coding.startsWith("utf8")) return "UTF-8";
+    if (coding.startsWith("shift") || coding.startsWith("sjis")) return "Shift_JIS";
+    return DEFAULT_ENCODING;
+  }
+
+  // "よみ /候補1/候補2/" を {よみ, "/候補1/候補2/"} にする。コメントや空行はnull
+  static String[] parseLine(String line) {
+    if (line.length() == 0 || line.startsWith(";")) return null;
+    int sp = line.indexOf(' ');
+    if (sp <= 0) return null;
+    String value = line.substring(sp + 1).trim();
+    if (!value.startsWith("/") || value.length() < 2) return null;
+    if (!value.endsWith("/")) value = value.concat("/");
+    return new String[] { line.substring(0, sp), value };
+  }
+
+  private static final Comparator<String[]> KEY_ORDER = new Comparator<String[]>() {
+    public int compare(String[] a, String[] b) {
+      return a[0].compareTo(b[0]);
+    }
+  };
+
+  // Collections.sortは安定なので、同じ読みは読み込んだ順に並ぶ
+  private static File writeRun(ArrayList<String[]> entries, File dir) throws IOException {
+    Collections.sort(entries, KEY_ORDER);
+    File run = File.createTempFile("skk", ".run", dir);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 64 * 1024));
+    try {
+      for (String[] e : entries) {
+        writeString(out, e[0]);
+        writeString(out, e[1]);
+      }
+    } finally {
+      out.close();
+    }
+    return run;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    out.writeInt(s.length());
+    out.writeChars(s);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int len = in.readInt();
+    char[] chars = new char[len];
+    for (int i = 0; i < len; i++) {
+      chars[i] = in.readChar();
+    }
+    return new String(chars);
+  }
+
+  /**
+   * ソート済みの一時ファイル1つ分。先頭のエントリだけをメモリに持つ
+   */
+  private static class Run implements Comparable<Run> {
+    final int order;
+    final DataInputStream in;
+    String key;
+    String value;
+
+    Run(File f, int order) throws IOException {
+      this.order = order;
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64 * 1024));
+    }
+
+    boolean next() throws IOException {
+      try {
+        key = readString(in);
+      } catch (EOFException e) {
+        in.close();
+        return false;
+      }
+      value = readString(in);
+      return true;
+    }
+
+    public int compareTo(Run o) {
+      int c = key.compareTo(o.key);
+      return (c != 0) ? c : order - o.order;
+    }
+  }
+
+  private int mergeRuns(List<File> runs, File output) throws IOException {
+    PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(runs.size(), 1));
+    for (int i = 0; i < runs.size(); i++) {
+      Run r = new Run(runs.get(i), i);
+      if (r.next()) queue.add(r);
+    }
+
+    CompletionIndexWriter completions = new CompletionIndexWriter(output.getAbsoluteFile().getParentFile(),
+        mCompletionDepth, mCompletionSize, mScoring);
+    DictionaryWriter writer = new DictionaryWriter(output, (int) mEntries, completions);
+    boolean done = false;
+    try {
+      StringBuilder value = new StringBuilder();
+      while (!queue.isEmpty()) {
+        Run r = queue.poll();
+        String key = r.key;
+        value.setLength(0);
+        value.append(r.value);
+        if (r.next()) queue.add(r);
+
+        while (!queue.isEmpty() && queue.peek().key.equals(key)) {
+          r = queue.poll();
+          mergeValue(value, r.value);
+          if (r.next()) queue.add(r);
+        }
+        writer.add(key, value.toString());
+      }
+      writer.finish();
+      done = true;
+      System.err.println(String.format("bloom filter: %d bytes, false positive rate %.3f%% (expected %.3f%%)",
+          writer.getBloomFilterSize(), writer.measureFalsePositiveRate() * 100,
+          writer.expectedFalsePositiveRate() * 100));
+      System.err.println(String.format("completion index: %d bytes, %d prefixes up to %d chars, top %d by %s",
+          writer.getCompletionIndexSize(), completions.getPrefixCount(), mCompletionDepth, mCompletionSize,
+          mScoring.name().toLowerCase()));
+    } finally {
+      if (!done) writer.abort();
+      for (Run r : queue) {
+        r.in.close();
+      }
+    }
+    return writer.getCount();
+  }
+
+  // valueにまだない候補だけを後ろに足す。注釈(;以降)は比較に含めない
+  static void mergeValue(StringBuilder value, String other) {
+    int start = 1;
+    while (start < other.length()) {
+      int end = other.indexOf('/', start);
+      if (end < 0) end = other.length();
+      if (end > start) {
+        String cand = other.substring(start, end);
+        int semi = cand.indexOf(';');
+        String word = (semi < 0) ? cand : cand.substring(0, semi);
+        if (!containsWord(value, word)) {
+          value.append(cand).append('/');
+        }
+      }
+      start = end + 1;
+    }
+  }
+
+  private static boolean containsWord(StringBuilder value, String word) {
+    int from = 0;
+    while (true) {
+      int i = value.indexOf("/" + word, from);
+      if (i < 0) return false;
+      int e = i + 1 + word.length();
+      if (e < value.length() && (value.charAt(e) == '/' || value.charAt(e) == ';')) return true;
+      from = i + 1;
+    }
+  }
+}
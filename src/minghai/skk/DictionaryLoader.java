@@ -0,0 +1,153 @@
+package minghai.skk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 辞書をバックグラウンドのスレッドで開く。
+ * ユーザー辞書、システム辞書、追加辞書ディレクトリ内の辞書をこの優先順位で開き、
+ * LayeredDictionaryにまとめる。
+ * 開き終わるまでの間、get()はnullを返し、await()は指定時間まで待つ。
+ * 辞書がなくてもかな入力はできるので、IMEの起動を辞書の読み込みで待たせない。
+ */
+public class DictionaryLoader {
+  public interface Listener {
+    /**
+     * 辞書が開けなかった時に読み込みスレッドから呼ばれる
+     */
+    void onDictionaryError(String path, IOException e);
+  }
+
+  private final String mPath;
+  private final File mAddonDir;
+  private final String mUserPath;
+  private final Listener mListener;
+  private final CountDownLatch mDone = new CountDownLatch(1);
+  private volatile SKKDictionary mDictionary;
+  private volatile UserDictionary mUserDictionary;
+  private volatile boolean mClosed = false;
+
+  /**
+   * @param path システム辞書
+   * @param addonDir 追加辞書を置くディレクトリ。ファイル名の順に優先する。nullなら使わない
+   * @param userPath ユーザー辞書。nullなら使わない
+   */
+  public DictionaryLoader(String path, File addonDir, String userPath, Listener listener) {
+    mPath = path;
+    mAddonDir = addonDir;
+    mUserPath = userPath;
+    mListener = listener;
+  }
+
+  public void start() {
+    Thread t = new Thread("DictionaryLoader") {
+      @Override
+      public void run() {
+        load();
+      }
+    };
+    t.setPriority(Thread.MIN_PRIORITY);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private void load() {
+    try {
+      List<SKKDictionary> layers = new ArrayList<SKKDictionary>();
+      UserDictionary user = null;
+      if (mUserPath != null) {
+        try {
+          user = new UserDictionary(mUserPath);
+          layers.add(user);
+        } catch (IOException e) {
+          if (mListener != null) mListener.onDictionaryError(mUserPath, e);
+        }
+      }
+      MappedDictionary system = open(mPath, layers);
+      // ユーザー辞書の補完をシステム辞書と同じ尺度で混ぜる
+      if (user != null && system != null) user.setCompletionScoring(system.getCompletionScoring());
+
+      File[] addons = (mAddonDir != null) ? mAddonDir.listFiles() : null;
+      if (addons != null) {
+        Arrays.sort(addons);
+        for (File f : addons) {
+          if (f.isFile()) open(f.getPath(), layers);
+        }
+      }
+      if (layers.isEmpty()) return;
+
+      SKKDictionary dic = new LayeredDictionary(layers);
+      synchronized (this) {
+        if (mClosed) {
+          dic.close();
+        } else {
+          mDictionary = dic;
+          mUserDictionary = user;
+        }
+      }
+    } finally {
+      mDone.countDown();
+    }
+  }
+
+  // 開けなければnull
+  private MappedDictionary open(String path, List<SKKDictionary> layers) {
+    try {
+      MappedDictionary dic = new MappedDictionary(path);
+      layers.add(dic);
+      return dic;
+    } catch (IOException e) {
+      if (mListener != null) mListener.onDictionaryError(path, e);
+      return null;
+    }
+  }
+
+  /**
+   * 読み込みが終わっていれば(失敗も含めて)true
+   */
+  public boolean isDone() {
+    return mDone.getCount() == 0;
+  }
+
+  /**
+   * 開き終わった辞書を返す。まだ開いていないか、開けなかった場合はnull
+   */
+  public SKKDictionary get() {
+    return mDictionary;
+  }
+
+  /**
+   * 学習に使うユーザー辞書を返す。まだ開いていないか、開けなかった場合はnull
+   */
+  public UserDictionary getUserDictionary() {
+    return mUserDictionary;
+  }
+
+  /**
+   * 辞書が開き終わるまで最大timeoutMillisだけ待つ。間に合わなければnull
+   */
+  public SKKDictionary await(long timeoutMillis) {
+    if (mDictionary == null && !isDone()) {
+      try {
+        mDone.await(timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return mDictionary;
+  }
+
+  public synchronized void close() {
+    mClosed = true;
+    if (mDictionary != null) {
+      mDictionary.close();
+      mDictionary = null;
+      mUserDictionary = null;
+    }
+  }
+}
@@ -0,0 +1,271 @@
+package minghai.skk;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * MappedDictionaryの形式で辞書ファイルを書き出す。
+ * エントリは読みの昇順(String.compareTo順)で渡すこと。
+ * 各セクションは一時ファイルに書き出してから連結するので、メモリ上に置くのは
+ * Bloomフィルタ(1エントリあたり10ビット)と補完索引の作りかけの上位候補だけで済む。
+ */
+class DictionaryWriter {
+  // セクションの並び。MappedDictionaryのHEADER_KEY_INDEX以降と同じ順序
+  private static final int KEY_INDEX = 0;
+  private static final int KEY_BLOB = 1;
+  private static final int ENTRY_INDEX = 2;
+  private static final int WORD_INDEX = 3;
+  private static final int WORD_BLOB = 4;
+  private static final int ANNOTATION_INDEX = 5;
+  private static final int ANNOTATION_BLOB = 6;
+  private static final int SECTIONS = 7; // この後に補完索引の5セクションとBloomフィルタが続く
+  private static final int COMPLETION_SECTIONS = 5;
+
+  // 誤判定率の測定に使う読みの数
+  private static final int SAMPLE_SIZE = 10000;
+
+  private final File mOutput;
+  private final File[] mFiles = new File[SECTIONS];
+  private final DataOutputStream[] mStreams = new DataOutputStream[SECTIONS];
+
+  private int mCount = 0;
+  private int mCandidates = 0;
+  private int mKeyChars = 0;
+  private int mWordChars = 0;
+  private int mAnnotationChars = 0;
+  private String mLastKey = null;
+  private int mCompletionIndexSize = 0;
+
+  private final BloomFilter mBloom;
+  private final CompletionIndexWriter mCompletions;
+  private final String[] mSamples = new String[SAMPLE_SIZE];
+  private final Random mRandom = new Random(0);
+
+  /**
+   * @param expectedEntries Bloomフィルタの大きさを決めるための、エントリ数の上限の見込み
+   * @param completions 補完索引。finish()かabort()で一時ファイルも片付ける
+   */
+  DictionaryWriter(File output, int expectedEntries, CompletionIndexWriter completions) throws IOException {
+    mOutput = output;
+    mBloom = BloomFilter.create(expectedEntries, BloomFilter.DEFAULT_BITS_PER_KEY);
+    mCompletions = completions;
+    File dir = output.getAbsoluteFile().getParentFile();
+    try {
+      for (int i = 0; i < SECTIONS; i++) {
+        mFiles[i] = File.createTempFile("skk", ".s" + i, dir);
+        mStreams[i] = open(mFiles[i]);
+      }
+    } catch (IOException e) {
+      abort();
+      throw e;
+    }
+
+    mStreams[KEY_INDEX].writeInt(0);
+    mStreams[ENTRY_INDEX].writeInt(0);
+    mStreams[WORD_INDEX].writeInt(0);
+    mStreams[ANNOTATION_INDEX].writeInt(0);
+  }
+
+  private static DataOutputStream open(File f) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 64 * 1024));
+  }
+
+  int getCount() {
+    return mCount;
+  }
+
+  int getCandidateCount() {
+    return mCandidates;
+  }
+
+  /**
+   * SKK辞書の値 "/候補1/候補2;注釈/" を分割して書き出す。
+   * 送りありの読みにある送り仮名ごとの候補ブロック "[く/多/]" は候補に含めない。
+   * それ以外の "[" で始まる候補("/[/"や"/[注]/"など)は普通の候補として扱う。
+   */
+  void add(String key, String value) throws IOException {
+    if (mLastKey != null && mLastKey.compareTo(key) >= 0) {
+      throw new IllegalArgumentException("Keys must be unique and sorted: " + mLastKey + " >= " + key);
+    }
+    mLastKey = key;
+
+    mStreams[KEY_BLOB].writeChars(key);
+    mKeyChars += key.length();
+    mStreams[KEY_INDEX].writeInt(mKeyChars);
+    mBloom.add(key);
+    sample(key);
+
+    int first = mCandidates;
+    boolean okuri = MappedDictionary.isOkuriKey(key);
+    boolean inBlock = false;
+    int start = 1; // value[0]は常に'/'
+    int len = value.length();
+    while (start < len) {
+      int end = value.indexOf('/', start);
+      if (end < 0) end = len;
+      if (inBlock) {
+        // ブロックは"]"だけの要素で終わる
+        if (end - start == 1 && value.charAt(start) == ']') inBlock = false;
+      } else if (okuri && isBlockStart(value, start, end)) {
+        inBlock = true;
+      } else if (end > start) {
+        int semi = value.indexOf(';', start);
+        if (semi < 0 || semi > end) semi = end;
+        addCandidate(value, start, semi, end);
+      }
+      start = end + 1;
+    }
+    mStreams[ENTRY_INDEX].writeInt(mCandidates);
+    mCompletions.add(mCount, key, mCandidates - first);
+
+    mCount++;
+  }
+
+  // value[start, end)が送り仮名のブロックの始まり"[かな"ならtrue
+  private static boolean isBlockStart(String value, int start, int end) {
+    if (end - start < 2 || value.charAt(start) != '[') return false;
+    for (int i = start + 1; i < end; i++) {
+      char c = value.charAt(i);
+      if (c < '\u3041' || c > '\u3096') return false;
+    }
+    return true;
+  }
+
+  private void addCandidate(String value, int start, int semi, int end) throws IOException {
+    mStreams[WORD_BLOB].writeChars(value.substring(start, semi));
+    mWordChars += semi - start;
+    mStreams[WORD_INDEX].writeInt(mWordChars);
+
+    if (semi < end) {
+      mStreams[ANNOTATION_BLOB].writeChars(value.substring(semi + 1, end));
+      mAnnotationChars += end - (semi + 1);
+    }
+    mStreams[ANNOTATION_INDEX].writeInt(mAnnotationChars);
+
+    mCandidates++;
+  }
+
+  // 誤判定率の測定用にリザーバサンプリングで読みを残しておく
+  private void sample(String key) {
+    if (mCount < SAMPLE_SIZE) {
+      mSamples[mCount] = key;
+    } else {
+      int i = mRandom.nextInt(mCount + 1);
+      if (i < SAMPLE_SIZE) mSamples[i] = key;
+    }
+  }
+
+  /**
+   * 辞書に存在しないことが分かっている読み(実在の読みの前後に辞書にない文字を付けたもの)で
+   * Bloomフィルタを引き、誤判定率を測る
+   */
+  double measureFalsePositiveRate() {
+    int n = Math.min(mCount, SAMPLE_SIZE);
+    if (n == 0) return 0;
+    int positives = 0;
+    for (int i = 0; i < n; i++) {
+      if (mBloom.mightContain(mSamples[i] + '\uFFFF')) positives++;
+      if (mBloom.mightContain('\uFFFF' + mSamples[i])) positives++;
+    }
+    return (double) positives / (n * 2);
+  }
+
+  double expectedFalsePositiveRate() {
+    return mBloom.expectedFalsePositiveRate(mCount);
+  }
+
+  int getBloomFilterSize() {
+    return mBloom.getBits().limit();
+  }
+
+  int getCompletionIndexSize() {
+    return mCompletionIndexSize;
+  }
+
+  /**
+   * ヘッダを付けて各セクションを連結し、一時ファイルを削除する
+   */
+  void finish() throws IOException {
+    for (DataOutputStream s : mStreams) {
+      s.close();
+    }
+
+    int[] completions = mCompletions.close();
+
+    int[] offsets = new int[SECTIONS + COMPLETION_SECTIONS + 1];
+    long offset = MappedDictionary.HEADER_SIZE;
+    for (int i = 0; i < SECTIONS; i++) {
+      offsets[i] = (int) offset;
+      offset += mFiles[i].length();
+    }
+    for (int i = 0; i < COMPLETION_SECTIONS; i++) {
+      offsets[SECTIONS + i] = (int) offset;
+      offset += completions[i];
+      mCompletionIndexSize += completions[i];
+    }
+    offsets[SECTIONS + COMPLETION_SECTIONS] = (int) offset;
+    offset += mBloom.getBits().limit();
+    if (offset > Integer.MAX_VALUE) throw new IOException("Dictionary too large: " + offset + " bytes");
+
+    DataOutputStream out = open(mOutput);
+    try {
+      out.writeInt(MappedDictionary.MAGIC);
+      out.writeInt(MappedDictionary.VERSION);
+      out.writeInt(mCount);
+      out.writeInt(mCandidates);
+      for (int i = 0; i < offsets.length; i++) {
+        out.writeInt(offsets[i]);
+      }
+      out.writeInt(mBloom.getHashCount());
+      out.writeInt(mCompletions.getSize());
+      out.writeInt(mCompletions.getScoring().ordinal());
+      while (out.size() < MappedDictionary.HEADER_SIZE) {
+        out.writeInt(0);
+      }
+
+      byte[] buf = new byte[64 * 1024];
+      for (int i = 0; i < SECTIONS; i++) {
+        copy(mFiles[i], out, buf);
+      }
+      mCompletions.writeTo(out);
+      out.write(mBloom.getBits().array());
+    } finally {
+      out.close();
+      abort();
+    }
+  }
+
+  /**
+   * 一時ファイルを削除する
+   */
+  void abort() {
+    mCompletions.abort();
+    for (int i = 0; i < SECTIONS; i++) {
+      try {
+        if (mStreams[i] != null) mStreams[i].close();
+      } catch (IOException e) {
+        // 消すだけなので無視
+      }
+      if (mFiles[i] != null) mFiles[i].delete();
+    }
+  }
+
+  private static void copy(File f, OutputStream out, byte[] buf) throws IOException {
+    InputStream in = new FileInputStream(f);
+    try {
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        out.write(buf, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
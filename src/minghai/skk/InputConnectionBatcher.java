@@ -0,0 +1,155 @@
+package minghai.skk;
+
+import android.view.inputmethod.InputConnection;
+
+/**
+ * 1回のキー入力の間に出たcommitText/setComposingTextをまとめて、最後に1回だけ
+ * InputConnectionに送る。InputConnectionの呼び出しはエディタのプロセスとの通信になるので、
+ * 1キーで何度も入力中の文字列を書き換えると重いエディタでは目に見えて遅くなる。
+ *
+ * commitText()は入力中の文字列を置き換えるので、何度確定しても最後に送るのは
+ * 「確定した文字列をつなげたもの」と「最後の入力中の文字列」の2つだけで済む。
+ * 入力中の文字列がエディタに前回送ったものと同じなら送らない。
+ * 2つとも送る時はbeginBatchEdit()とendBatchEdit()で囲む。
+ *
+ * begin()とend()の外で呼ばれた操作はすぐに送る。
+ */
+public class InputConnectionBatcher {
+  private int mDepth = 0;
+
+  private final StringBuilder mCommit = new StringBuilder();
+  private boolean mCommitPending = false;
+  private final StringBuilder mComposing = new StringBuilder();
+  private boolean mComposingPending = false;
+
+  // エディタにある入力中の文字列。mSentKnownがfalseなら分からない
+  private final StringBuilder mSent = new StringBuilder();
+  private boolean mSentKnown = false;
+
+  private int mRequests = 0;
+  private int mCalls = 0;
+
+  public void begin() {
+    mDepth++;
+  }
+
+  /**
+   * 一番外側のend()でまとめて送る
+   */
+  public void end(InputConnection ic) {
+    if (--mDepth <= 0) {
+      mDepth = 0;
+      flush(ic);
+    }
+  }
+
+  public void commitText(InputConnection ic, CharSequence text, int newCursorPosition) {
+    mRequests++;
+    if (newCursorPosition != 1) {
+      // カーソルの位置が違うものはまとめられないので、それまでの分を送ってからそのまま送る
+      flush(ic);
+      if (ic != null) {
+        ic.commitText(text, newCursorPosition);
+        mCalls++;
+        mSent.setLength(0);
+        mSentKnown = true;
+      }
+      return;
+    }
+    mCommit.append(text);
+    mCommitPending = true;
+    mComposing.setLength(0);
+    mComposingPending = false;
+    if (mDepth == 0) flush(ic);
+  }
+
+  public void setComposingText(InputConnection ic, CharSequence text) {
+    mRequests++;
+    mComposing.setLength(0);
+    mComposing.append(text);
+    mComposingPending = true;
+    if (mDepth == 0) flush(ic);
+  }
+
+  /**
+   * まとめていた分を送る。キーイベントを送る前にも呼ぶこと
+   */
+  public void flush(InputConnection ic) {
+    if (!mCommitPending && !mComposingPending) return;
+    if (ic != null) {
+      send(ic, mCommitPending, mComposingPending);
+    }
+    mCommit.setLength(0);
+    mCommitPending = false;
+    mComposing.setLength(0);
+    mComposingPending = false;
+  }
+
+  // mCommitに続けてmComposingを送る。commitTextを送るとエディタの入力中の文字列はなくなるので、
+  // その後は空でなければ送る。commitTextを送らない時は前回送ったものと違えば送る
+  private void send(InputConnection ic, boolean commit, boolean composing) {
+    if (composing) {
+      if (commit) {
+        composing = mComposing.length() > 0;
+      } else if (mSentKnown) {
+        composing = !equals(mComposing, mSent);
+      }
+    }
+
+    long start = KeyLatencyTracer.ENABLED ? System.nanoTime() : 0;
+    boolean batch = commit && composing;
+    if (batch) ic.beginBatchEdit();
+    if (commit) {
+      ic.commitText(mCommit, 1);
+      mCalls++;
+      mSent.setLength(0);
+      mSentKnown = true;
+    }
+    if (composing) {
+      ic.setComposingText(mComposing, 1);
+      mCalls++;
+      mSent.setLength(0);
+      mSent.append(mComposing);
+      mSentKnown = true;
+    }
+    if (batch) ic.endBatchEdit();
+    if (KeyLatencyTracer.ENABLED && (commit || composing)) {
+      KeyLatencyTracer.record(KeyLatencyTracer.INPUT_CONNECTION, start);
+    }
+  }
+
+  private static boolean equals(CharSequence a, CharSequence b) {
+    int len = a.length();
+    if (len != b.length()) return false;
+    for (int i = 0; i < len; i++) {
+      if (a.charAt(i) != b.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * エディタ側で入力中の文字列が確定された(onUpdateSelectionなど)。
+   * この通知は遅れて届くので、最後に送った文字列より古い状態のことがある。
+   * エディタの状態は決めつけず、次の入力中の文字列は必ず送る
+   */
+  public void onComposingFinished() {
+    mSentKnown = false;
+  }
+
+  /**
+   * エディタの状態が分からなくなった。次の入力中の文字列は必ず送る
+   */
+  public void reset() {
+    mDepth = 0;
+    mCommit.setLength(0);
+    mCommitPending = false;
+    mComposing.setLength(0);
+    mComposingPending = false;
+    mSentKnown = false;
+  }
+
+  @Override
+  public String toString() {
+    return "InputConnectionBatcher: " + mRequests + " requests, " + mCalls + " calls";
+  }
+}
@@ -0,0 +1,191 @@
+package minghai.skk;
+
+/**
+ * ひらがな、カタカナ、半角カタカナ、全角英数の変換。
+ * 文字ごとの対応は表にしてあり、文字列は1回走査するだけで変換する。
+ * 結果は呼び出し側のStringBuilderの後ろに足すので、バッファを使い回せば
+ * 変換のたびにオブジェクトを作らない。
+ *
+ * 濁点・半濁点は、半角カタカナへの変換では分解し("ガ" → "ｶﾞ")、
+ * カタカナ・全角への変換では直前の文字と合成する("ｶﾞ" → "ガ", "う゛" → "ヴ")。
+ *
+ * ひらがなからカタカナへの変換は「文字列・改」のコードを改変したもの。
+ *
+ * @author 佐藤 雅俊さん <okome@siisise.net> http://siisise.net/java/lang/ のコードを改変
+ */
+public class KanaConverter {
+  private static final char HIRAGANA_FIRST = 'ぁ';
+  private static final char HIRAGANA_LAST = 'ゖ';
+  private static final char KATAKANA_FIRST = 'ァ';
+  private static final char KATAKANA_LAST = 'ヶ';
+  private static final int KANA_OFFSET = KATAKANA_FIRST - HIRAGANA_FIRST;
+
+  // 全角の濁点・半濁点。単独で置かれたもの
+  private static final char VOICED_MARK = '゛';
+  private static final char SEMI_VOICED_MARK = '゜';
+  // 半角の濁点・半濁点
+  private static final char HALF_VOICED_MARK = 'ﾞ';
+  private static final char HALF_SEMI_VOICED_MARK = 'ﾟ';
+
+  private static final char HALF_FIRST = '｡';
+  private static final char HALF_LAST = 'ﾟ';
+  // U+FF61からU+FF9Fに対応する全角文字
+  private static final String HALF_TO_FULL =
+    "。「」、・ヲァィゥェォャュョッーアイウエオカキクケコサシスセソタチツテトナニヌネノハヒフヘホマミムメモヤユヨラリルレロワン゛゜";
+
+  // U+30A0からU+30FFのカタカナに対する表
+  private static final int BLOCK = 0x30A0;
+  private static final char[] HALF = new char[0x60];       // 半角の清音。なければ0
+  private static final byte[] HALF_MARK = new byte[0x60];  // 1なら濁点、2なら半濁点が付く
+  private static final char[] VOICED = new char[0x60];     // 濁点を付けた文字。なければ0
+  private static final char[] SEMI_VOICED = new char[0x60];
+
+  static {
+    for (int i = 0; i < HALF_TO_FULL.length(); i++) {
+      char full = HALF_TO_FULL.charAt(i);
+      if (full >= BLOCK && full < BLOCK + 0x60) HALF[full - BLOCK] = (char) (HALF_FIRST + i);
+    }
+    // 小さいヮヵヶ、ヰヱは普通の大きさにする
+    HALF['ヮ' - BLOCK] = HALF['ワ' - BLOCK];
+    HALF['ヵ' - BLOCK] = HALF['カ' - BLOCK];
+    HALF['ヶ' - BLOCK] = HALF['ケ' - BLOCK];
+    HALF['ヰ' - BLOCK] = HALF['イ' - BLOCK];
+    HALF['ヱ' - BLOCK] = HALF['エ' - BLOCK];
+
+    // ガ = カ + 1 のように、濁音は清音の次の符号位置にある
+    String voiceable = "カキクケコサシスセソタチツテトハヒフヘホ";
+    for (int i = 0; i < voiceable.length(); i++) {
+      char c = voiceable.charAt(i);
+      addVoiced(c, (char) (c + 1), 1);
+    }
+    addVoiced('ウ', 'ヴ', 1);
+    addVoiced('ワ', 'ヷ', 1);
+    addVoiced('ヲ', 'ヺ', 1);
+    String semiVoiceable = "ハヒフヘホ";
+    for (int i = 0; i < semiVoiceable.length(); i++) {
+      char c = semiVoiceable.charAt(i);
+      addVoiced(c, (char) (c + 2), 2);
+    }
+  }
+
+  private static void addVoiced(char base, char voiced, int mark) {
+    if (mark == 1) {
+      VOICED[base - BLOCK] = voiced;
+    } else {
+      SEMI_VOICED[base - BLOCK] = voiced;
+    }
+    HALF[voiced - BLOCK] = HALF[base - BLOCK];
+    HALF_MARK[voiced - BLOCK] = (byte) mark;
+  }
+
+  private KanaConverter() {
+  }
+
+  /**
+   * ひらがなをカタカナにする。その他の文字はそのまま
+   */
+  public static char toKatakana(char c) {
+    if ((c >= HIRAGANA_FIRST && c <= HIRAGANA_LAST) || c == 'ゝ' || c == 'ゞ') return (char) (c + KANA_OFFSET);
+    return c;
+  }
+
+  /**
+   * ひらがなをカタカナにする。"う゛"のように濁点が別になっている文字は1文字に合成する
+   */
+  public static void toKatakana(CharSequence src, StringBuilder dst) {
+    int len = src.length();
+    dst.ensureCapacity(dst.length() + len);
+    for (int i = 0; i < len; i++) {
+      char c = toKatakana(src.charAt(i));
+      if (i + 1 < len) {
+        char composed = compose(c, src.charAt(i + 1));
+        if (composed != 0) {
+          c = composed;
+          i++;
+        }
+      }
+      dst.append(c);
+    }
+  }
+
+  /**
+   * カタカナをひらがなにする。ひらがなのないもの(ヷなど)はそのまま
+   */
+  public static char toHiragana(char c) {
+    if ((c >= KATAKANA_FIRST && c <= KATAKANA_LAST) || c == 'ヽ' || c == 'ヾ') return (char) (c - KANA_OFFSET);
+    return c;
+  }
+
+  public static void toHiragana(CharSequence src, StringBuilder dst) {
+    int len = src.length();
+    dst.ensureCapacity(dst.length() + len);
+    for (int i = 0; i < len; i++) {
+      dst.append(toHiragana(src.charAt(i)));
+    }
+  }
+
+  /**
+   * ひらがな、カタカナ、全角の句読点を半角カタカナにする。濁音は2文字になる
+   */
+  public static void toHalfwidthKatakana(CharSequence src, StringBuilder dst) {
+    int len = src.length();
+    dst.ensureCapacity(dst.length() + len);
+    for (int i = 0; i < len; i++) {
+      char c = toKatakana(src.charAt(i));
+      int k = c - BLOCK;
+      if (k >= 0 && k < HALF.length && HALF[k] != 0) {
+        dst.append(HALF[k]);
+        if (HALF_MARK[k] == 1) dst.append(HALF_VOICED_MARK);
+        if (HALF_MARK[k] == 2) dst.append(HALF_SEMI_VOICED_MARK);
+        continue;
+      }
+      switch (c) {
+      case '。': c = '｡'; break;
+      case '「': c = '｢'; break;
+      case '」': c = '｣'; break;
+      case '、': c = '､'; break;
+      case VOICED_MARK: c = HALF_VOICED_MARK; break;
+      case SEMI_VOICED_MARK: c = HALF_SEMI_VOICED_MARK; break;
+      }
+      dst.append(c);
+    }
+  }
+
+  /**
+   * 半角英数記号と空白を全角にする。その他の文字はそのまま
+   */
+  public static char toFullwidth(char c) {
+    if (c == ' ') return '　';
+    if (c > ' ' && c <= '~') return (char) (c - 0x20 + 0xFF00);
+    if (c >= HALF_FIRST && c <= HALF_LAST) return HALF_TO_FULL.charAt(c - HALF_FIRST);
+    return c;
+  }
+
+  /**
+   * 半角英数記号と半角カタカナを全角にする。半角の濁点は直前の文字と合成する
+   */
+  public static void toFullwidth(CharSequence src, StringBuilder dst) {
+    int len = src.length();
+    dst.ensureCapacity(dst.length() + len);
+    for (int i = 0; i < len; i++) {
+      char c = toFullwidth(src.charAt(i));
+      if (i + 1 < len) {
+        char composed = compose(c, src.charAt(i + 1));
+        if (composed != 0) {
+          c = composed;
+          i++;
+        }
+      }
+      dst.append(c);
+    }
+  }
+
+  // カタカナcの後ろにmarkが来た時に合成した文字。合成できなければ0
+  private static char compose(char c, char mark) {
+    int k = c - BLOCK;
+    if (k < 0 || k >= VOICED.length) return 0;
+    if (mark == VOICED_MARK || mark == HALF_VOICED_MARK) return VOICED[k];
+    if (mark == SEMI_VOICED_MARK || mark == HALF_SEMI_VOICED_MARK) return SEMI_VOICED[k];
+    return 0;
+  }
+}
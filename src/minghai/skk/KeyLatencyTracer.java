@@ -0,0 +1,76 @@
+package minghai.skk;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * キー入力の処理時間を段階ごとに記録する。
+ * 呼び出し側は必ず if (KeyLatencyTracer.ENABLED) で囲むこと。ENABLEDがfalseなら
+ * コンパイル時に呼び出しごと消えるので、リリース版では何もしない。
+ *
+ * 記録は固定長のリングバッファに上書きしていくだけで、ロックもメモリの確保もしない。
+ * 辞書の検索はワーカースレッドからも記録するので、書き込む位置はAtomicIntegerで取る。
+ * 集計はdump()の時にだけ行う。
+ * <pre>
+ * long start = KeyLatencyTracer.ENABLED ? System.nanoTime() : 0;
+ * ...
+ * if (KeyLatencyTracer.ENABLED) KeyLatencyTracer.record(KeyLatencyTracer.ROMAJI, start);
+ * </pre>
+ */
+public class KeyLatencyTracer {
+  public static final boolean ENABLED = false;
+
+  /** onKey()全体 */
+  public static final int KEY = 0;
+  /** ローマ字を1文字進める */
+  public static final int ROMAJI = 1;
+  /** 辞書の検索と補完 */
+  public static final int LOOKUP = 2;
+  /** 候補の描画 */
+  public static final int RENDER = 3;
+  /** InputConnectionの呼び出し */
+  public static final int INPUT_CONNECTION = 4;
+  private static final String[] PHASE_NAMES = { "key", "romaji", "lookup", "render", "input connection" };
+
+  // 2のべき乗にしておく
+  private static final int CAPACITY = 4096;
+  private static final byte[] sPhases = new byte[CAPACITY];
+  private static final long[] sDurations = new long[CAPACITY];
+  private static final AtomicInteger sPosition = new AtomicInteger();
+
+  private KeyLatencyTracer() {
+  }
+
+  /**
+   * startからの経過時間をphaseの記録としてリングバッファに入れる
+   */
+  public static void record(int phase, long start) {
+    long duration = System.nanoTime() - start;
+    int i = sPosition.getAndIncrement() & (CAPACITY - 1);
+    sDurations[i] = duration;
+    sPhases[i] = (byte) phase;
+  }
+
+  /**
+   * リングバッファに残っている記録を段階ごとにまとめて表示する。
+   * 書き込み中の記録が混じることがあるが、集計には影響しない程度なので気にしない
+   */
+  public static void dump(PrintWriter out) {
+    if (!ENABLED) {
+      out.println("KeyLatencyTracer: disabled");
+      return;
+    }
+    int end = sPosition.get();
+    int count = Math.min(end, CAPACITY);
+    out.println("KeyLatencyTracer: last " + count + " of " + end + " records");
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+      histogram.clear();
+      for (int n = end - count; n < end; n++) {
+        int i = n & (CAPACITY - 1);
+        if (sPhases[i] == phase) histogram.record(sDurations[i]);
+      }
+      if (histogram.getCount() > 0) histogram.print(out, PHASE_NAMES[phase]);
+    }
+  }
+}
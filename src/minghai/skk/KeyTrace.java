@@ -0,0 +1,119 @@
+package minghai.skk;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * 再生用に記録したキー入力の列。1行に1キーで、前のキーからの間隔(ms)とキーを書く。
+ * <pre>
+ * # コメント
+ * 0 K
+ * 120 a
+ * 95 SPACE
+ * 200 ENTER
+ * </pre>
+ * キーは1文字か、SPACE、ENTER、BS(バックスペース)。大文字はシフトしたキーとして扱う。
+ * LatinKeyboardViewの自動再生と、デスクトップで変換エンジンに流して測るのに使う。
+ */
+public class KeyTrace {
+  /** バックスペース。Keyboard.KEYCODE_DELETEと同じ値 */
+  public static final int KEY_BACKSPACE = -5;
+  public static final int KEY_ENTER = '\n';
+
+  private int[] mCodes = new int[64];
+  private int[] mDelays = new int[64];
+  private int mSize = 0;
+
+  public int size() {
+    return mSize;
+  }
+
+  public int getCode(int index) {
+    return mCodes[index];
+  }
+
+  /**
+   * 前のキーからの間隔(ms)
+   */
+  public int getDelay(int index) {
+    return mDelays[index];
+  }
+
+  public void add(int code, int delay) {
+    if (mSize == mCodes.length) {
+      int[] codes = new int[mSize * 2];
+      int[] delays = new int[mSize * 2];
+      System.arraycopy(mCodes, 0, codes, 0, mSize);
+      System.arraycopy(mDelays, 0, delays, 0, mSize);
+      mCodes = codes;
+      mDelays = delays;
+    }
+    mCodes[mSize] = code;
+    mDelays[mSize] = delay;
+    mSize++;
+  }
+
+  /**
+   * 文字列の各文字を間隔0で打ったことにする。改行はENTER
+   */
+  public static KeyTrace fromString(CharSequence s) {
+    KeyTrace trace = new KeyTrace();
+    for (int i = 0; i < s.length(); i++) {
+      trace.add(s.charAt(i), 0);
+    }
+    return trace;
+  }
+
+  /**
+   * 読めない行があればIOExceptionを投げる
+   */
+  public static KeyTrace parse(Reader reader) throws IOException {
+    BufferedReader in = new BufferedReader(reader);
+    KeyTrace trace = new KeyTrace();
+    String line;
+    int lineNumber = 0;
+    while ((line = in.readLine()) != null) {
+      lineNumber++;
+      if (line.trim().length() == 0 || line.startsWith("#")) continue;
+      int sep = line.indexOf(' ');
+      if (sep < 0) throw new IOException("Bad key trace line " + lineNumber + ": " + line);
+      int code = parseKey(line.substring(sep + 1));
+      if (code == 0) throw new IOException("Bad key at line " + lineNumber + ": " + line);
+      try {
+        trace.add(code, Integer.parseInt(line.substring(0, sep)));
+      } catch (NumberFormatException e) {
+        throw new IOException("Bad delay at line " + lineNumber + ": " + line);
+      }
+    }
+    return trace;
+  }
+
+  private static int parseKey(String key) {
+    if (key.length() == 1) return key.charAt(0);
+    if (key.equals("SPACE")) return ' ';
+    if (key.equals("ENTER")) return KEY_ENTER;
+    if (key.equals("BS")) return KEY_BACKSPACE;
+    return 0;
+  }
+
+  private static String formatKey(int code) {
+    switch (code) {
+    case ' ':
+      return "SPACE";
+    case KEY_ENTER:
+      return "ENTER";
+    case KEY_BACKSPACE:
+      return "BS";
+    default:
+      return String.valueOf((char) code);
+    }
+  }
+
+  public void write(Writer out) throws IOException {
+    for (int i = 0; i < mSize; i++) {
+      out.write(mDelays[i] + " " + formatKey(mCodes[i]) + "\n");
+    }
+  }
+}
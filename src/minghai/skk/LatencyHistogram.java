@@ -0,0 +1,94 @@
+package minghai.skk;
+
+import java.io.PrintWriter;
+
+/**
+ * 処理時間の分布。2倍ごとの区間に数えるだけなので、記録するのにメモリを確保しない。
+ * パーセンタイルは区間の上限で近似する。
+ */
+public class LatencyHistogram {
+  // 区間iは [2^(i+MIN_SHIFT-1), 2^(i+MIN_SHIFT)) ns。区間0は2^MIN_SHIFT ns未満
+  private static final int MIN_SHIFT = 8;  // 256ns
+  private static final int BUCKETS = 24;   // 最後の区間は約2秒以上
+
+  private final long[] mCounts = new long[BUCKETS];
+  private long mCount = 0;
+  private long mTotal = 0;
+  private long mMax = 0;
+
+  public void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+    int bucket = 64 - Long.numberOfLeadingZeros(nanos >>> MIN_SHIFT);
+    if (bucket >= BUCKETS) bucket = BUCKETS - 1;
+    mCounts[bucket]++;
+    mCount++;
+    mTotal += nanos;
+    if (nanos > mMax) mMax = nanos;
+  }
+
+  public void clear() {
+    for (int i = 0; i < BUCKETS; i++) {
+      mCounts[i] = 0;
+    }
+    mCount = 0;
+    mTotal = 0;
+    mMax = 0;
+  }
+
+  public long getCount() {
+    return mCount;
+  }
+
+  public long getMax() {
+    return mMax;
+  }
+
+  public long getMean() {
+    return (mCount == 0) ? 0 : mTotal / mCount;
+  }
+
+  /**
+   * p(0から1)の割合の記録がこれ以下に収まる時間(ns)
+   */
+  public long getPercentile(double p) {
+    if (mCount == 0) return 0;
+    long rank = (long) Math.ceil(p * mCount);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += mCounts[i];
+      if (seen >= rank) return Math.min(upperBound(i), mMax);
+    }
+    return mMax;
+  }
+
+  private static long upperBound(int bucket) {
+    return 1L << (bucket + MIN_SHIFT);
+  }
+
+  /**
+   * 区間ごとの回数を棒グラフで表示する
+   */
+  public void print(PrintWriter out, String name) {
+    out.println(name + ": " + mCount + " samples, mean " + format(getMean())
+        + ", p50 " + format(getPercentile(0.5)) + ", p90 " + format(getPercentile(0.9))
+        + ", p99 " + format(getPercentile(0.99)) + ", max " + format(mMax));
+    long peak = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      peak = Math.max(peak, mCounts[i]);
+    }
+    for (int i = 0; i < BUCKETS; i++) {
+      if (mCounts[i] == 0) continue;
+      StringBuilder bar = new StringBuilder();
+      for (long n = mCounts[i] * 40 / peak; n > 0; n--) {
+        bar.append('#');
+      }
+      out.println(String.format("  < %8s %8d %s", format(upperBound(i)), mCounts[i], bar));
+    }
+  }
+
+  private static String format(long nanos) {
+    if (nanos < 10000) return nanos + "ns";
+    if (nanos < 10000000) return (nanos / 1000) + "us";
+    return (nanos / 1000000) + "ms";
+  }
+}
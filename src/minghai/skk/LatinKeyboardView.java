@@ -90,11 +90,16 @@ public class LatinKeyboardView extends KeyboardView {
   static final boolean DEBUG_AUTO_PLAY = false;
   private static final int MSG_TOUCH_DOWN = 1;
   private static final int MSG_TOUCH_UP = 2;
+  // 記録に間隔がない場合の、キーを離してから次のキーを押すまでの時間(ms)
+  static final int DEFAULT_PLAY_DELAY = 500;
+  // キーを押してから離すまでの時間(ms)。記録の間隔はキーとキーの間にだけ入れる
+  private static final int TOUCH_HOLD = 0;
   
   Handler mHandler2;
   
-  private String mStringToPlay;
+  private KeyTrace mTraceToPlay;
   private int mStringIndex;
+  private int mPlayDelay = DEFAULT_PLAY_DELAY;
   private boolean mDownDelivered;
   private Key[] mAsciiKeys = new Key[256];
   private boolean mPlaying;
@@ -114,18 +119,17 @@ public class LatinKeyboardView extends KeyboardView {
                       
                       switch (msg.what) {
                           case MSG_TOUCH_DOWN:
-                              if (mStringIndex >= mStringToPlay.length()) {
+                              if (mStringIndex >= mTraceToPlay.size()) {
                                   mPlaying = false;
                                   return;
                               }
-                              char c = mStringToPlay.charAt(mStringIndex);
-                              while (c > 255 || mAsciiKeys[(int) c] == null) {
+                              int c = mTraceToPlay.getCode(mStringIndex);
+                              if (c < 0 || c > 255 || mAsciiKeys[c] == null) {
+                                  // キーボードにないキー(大文字やバックスペースなど)は直接渡す
+                                  getOnKeyboardActionListener().onKey(c, null);
                                   mStringIndex++;
-                                  if (mStringIndex >= mStringToPlay.length()) {
-                                      mPlaying = false;
-                                      return;
-                                  }
-                                  c = mStringToPlay.charAt(mStringIndex);
+                                  sendEmptyMessageDelayed(MSG_TOUCH_DOWN, delay(mStringIndex));
+                                  return;
                               }
                               int x = mAsciiKeys[c].x + 10;
                               int y = mAsciiKeys[c].y + 26;
@@ -134,12 +138,11 @@ public class LatinKeyboardView extends KeyboardView {
                                       MotionEvent.ACTION_DOWN, x, y, 0);
                               LatinKeyboardView.this.dispatchTouchEvent(me);
                               me.recycle();
-                              sendEmptyMessageDelayed(MSG_TOUCH_UP, 500); // Deliver up in 500ms if nothing else
-                              // happens
+                              sendEmptyMessageDelayed(MSG_TOUCH_UP, TOUCH_HOLD);
                               mDownDelivered = true;
                               break;
                           case MSG_TOUCH_UP:
-                              char cUp = mStringToPlay.charAt(mStringIndex);
+                              int cUp = mTraceToPlay.getCode(mStringIndex);
                               int x2 = mAsciiKeys[cUp].x + 10;
                               int y2 = mAsciiKeys[cUp].y + 26;
                               mStringIndex++;
@@ -149,7 +152,7 @@ public class LatinKeyboardView extends KeyboardView {
                                       MotionEvent.ACTION_UP, x2, y2, 0);
                               LatinKeyboardView.this.dispatchTouchEvent(me2);
                               me2.recycle();
-                              sendEmptyMessageDelayed(MSG_TOUCH_DOWN, 500); // Deliver up in 500ms if nothing else
+                              sendEmptyMessageDelayed(MSG_TOUCH_DOWN, delay(mStringIndex)); // Deliver up if nothing else
                               // happens
                               mDownDelivered = false;
                               break;
@@ -172,10 +175,30 @@ public class LatinKeyboardView extends KeyboardView {
       }
   }
   
+  // index番目のキーを押すまでの時間
+  private int delay(int index) {
+      if (index < mTraceToPlay.size() && mTraceToPlay.getDelay(index) > 0) {
+          return mTraceToPlay.getDelay(index);
+      }
+      return mPlayDelay;
+  }
+
+  /**
+   * 記録に間隔がない時のキーの間隔(ms)。0なら待たずに次のキーを押す
+   */
+  void setPlayDelay(int delay) {
+      mPlayDelay = delay;
+  }
+
   void startPlaying(String s) {
-      if (!DEBUG_AUTO_PLAY) return;
       if (s == null) return;
-      mStringToPlay = s.toLowerCase();
+      startPlaying(KeyTrace.fromString(s.toLowerCase()));
+  }
+
+  void startPlaying(KeyTrace trace) {
+      if (!DEBUG_AUTO_PLAY) return;
+      if (trace == null) return;
+      mTraceToPlay = trace;
       mPlaying = true;
       mDownDelivered = false;
       mStringIndex = 0;
@@ -185,14 +208,10 @@ public class LatinKeyboardView extends KeyboardView {
   @Override
   public void draw(Canvas c) {
       super.draw(c);
-      if (DEBUG_AUTO_PLAY && mPlaying) {
-          mHandler2.removeMessages(MSG_TOUCH_DOWN);
+      // 次のキーまでの間隔は記録どおりにしたいので、描き終えても次のキーは早めない
+      if (DEBUG_AUTO_PLAY && mPlaying && mDownDelivered) {
           mHandler2.removeMessages(MSG_TOUCH_UP);
-          if (mDownDelivered) {
-              mHandler2.sendEmptyMessageDelayed(MSG_TOUCH_UP, 20);
-          } else {
-              mHandler2.sendEmptyMessageDelayed(MSG_TOUCH_DOWN, 20);
-          }
+          mHandler2.sendEmptyMessageDelayed(MSG_TOUCH_UP, TOUCH_HOLD);
       }
   }
 }
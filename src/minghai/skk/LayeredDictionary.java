@@ -0,0 +1,153 @@
+package minghai.skk;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * 複数の辞書を優先順位の順に重ねて1つの辞書に見せる。
+ * 候補は上の辞書のものから順に並べ、重複は取り除く。複数の辞書に候補がある時は
+ * PagedCandidateListを返し、重複の取り除きも取り出した分だけ行う。
+ * 補完は各辞書の上位limit個をスコアでk-wayマージする。
+ */
+public class LayeredDictionary implements SKKDictionary {
+  private final SKKDictionary[] mLayers;
+
+  /**
+   * @param layers 優先順位の高い順
+   */
+  public LayeredDictionary(List<SKKDictionary> layers) {
+    mLayers = layers.toArray(new SKKDictionary[layers.size()]);
+  }
+
+  public List<String> findCandidates(String key) {
+    ArrayList<List<String>> found = null;
+    List<String> first = null;
+
+    for (SKKDictionary layer : mLayers) {
+      List<String> list = layer.findCandidates(key);
+      if (list == null) continue;
+      if (first == null) {
+        first = list;
+        continue;
+      }
+      if (found == null) {
+        found = new ArrayList<List<String>>(mLayers.length);
+        found.add(first);
+      }
+      found.add(list);
+    }
+    // 1つの辞書にしかなければそのまま返す
+    if (found == null) return first;
+    return new PagedCandidateList(new MergedCandidates(found));
+  }
+
+  /**
+   * 各辞書の補完はスコアの高い順に並んでいるので、先頭どうしを比べてスコアの高い順に取り出す。
+   * 同じ読みは最初に出たもの(スコアの高い方)だけを残す。同点なら上の辞書を優先する
+   */
+  public List<Completion> complete(String prefix, int limit) {
+    if (mLayers.length == 1) return mLayers[0].complete(prefix, limit);
+    PriorityQueue<Head> queue = new PriorityQueue<Head>(mLayers.length);
+    for (int i = 0; i < mLayers.length; i++) {
+      List<Completion> list = mLayers[i].complete(prefix, limit);
+      if (!list.isEmpty()) queue.add(new Head(list, i));
+    }
+
+    ArrayList<Completion> result = new ArrayList<Completion>(Math.max(limit, 0));
+    HashSet<String> seen = new HashSet<String>();
+    while (result.size() < limit && !queue.isEmpty()) {
+      Head h = queue.poll();
+      Completion c = h.list.get(h.index++);
+      if (seen.add(c.key)) result.add(c);
+      if (h.index < h.list.size()) queue.add(h);
+    }
+    return result;
+  }
+
+  public void close() {
+    for (SKKDictionary layer : mLayers) {
+      layer.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("LayeredDictionary:");
+    for (SKKDictionary layer : mLayers) {
+      sb.append("\n  ").append(layer);
+    }
+    return sb.toString();
+  }
+
+  // 各辞書の補完のうち、まだ取り出していない先頭
+  private static class Head implements Comparable<Head> {
+    final List<Completion> list;
+    final int layer;
+    int index = 0;
+
+    Head(List<Completion> list, int layer) {
+      this.list = list;
+      this.layer = layer;
+    }
+
+    public int compareTo(Head o) {
+      long s1 = list.get(index).score;
+      long s2 = o.list.get(o.index).score;
+      if (s1 != s2) return (s1 > s2) ? -1 : 1;
+      return layer - o.layer;
+    }
+  }
+
+  /**
+   * 各辞書の候補を上から順に並べ、前に出たものは飛ばす
+   */
+  private static class MergedCandidates implements Iterator<String> {
+    private final Iterator<List<String>> mLists;
+    private Iterator<String> mCurrent;
+    private final HashSet<String> mSeen = new HashSet<String>();
+    // 次に返す候補。終わりならnull
+    private String mNext;
+
+    MergedCandidates(List<List<String>> lists) {
+      mLists = lists.iterator();
+      mCurrent = mLists.next().iterator();
+      advance();
+    }
+
+    private void advance() {
+      while (true) {
+        while (mCurrent.hasNext()) {
+          String s = mCurrent.next();
+          if (mSeen.add(s)) {
+            mNext = s;
+            return;
+          }
+        }
+        if (!mLists.hasNext()) {
+          mNext = null;
+          return;
+        }
+        mCurrent = mLists.next().iterator();
+      }
+    }
+
+    public boolean hasNext() {
+      return mNext != null;
+    }
+
+    public String next() {
+      if (mNext == null) throw new NoSuchElementException();
+      String s = mNext;
+      advance();
+      return s;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
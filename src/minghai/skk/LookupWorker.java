@@ -0,0 +1,103 @@
+package minghai.skk;
+
+/**
+ * 候補の検索を1本のワーカースレッドで行う。
+ * 要求には入力の世代番号を付け、新しい世代の要求が来たら古い要求は
+ * 実行前に捨てる。実行中の古い要求はisStale()で自分が不要になったことを知る。
+ * 遅らせて積んだ要求は、その間に次の要求が来なかった時だけ実行する。
+ */
+public class LookupWorker implements Runnable {
+  public static abstract class Task {
+    final int mGeneration;
+
+    protected Task(int generation) {
+      mGeneration = generation;
+    }
+
+    public int getGeneration() {
+      return mGeneration;
+    }
+
+    /**
+     * ワーカースレッドで呼ばれる
+     */
+    protected abstract void run();
+  }
+
+  private final Thread mThread;
+  private Task mPending = null;
+  // mPendingを実行してよい時刻(System.nanoTime())
+  private long mDue = 0;
+  private volatile int mLatest = 0;
+  private boolean mQuit = false;
+
+  public LookupWorker(String name) {
+    mThread = new Thread(this, name);
+    mThread.setDaemon(true);
+    mThread.start();
+  }
+
+  /**
+   * 要求を積む。まだ始まっていない要求があれば置き換える
+   */
+  public void submit(Task task) {
+    submit(task, 0);
+  }
+
+  /**
+   * delay(ms)待ってから実行する要求を積む。待っている間に次の要求が来たらこの要求は捨て、
+   * 次の要求のdelayから待ち直す
+   */
+  public synchronized void submit(Task task, long delay) {
+    mPending = task;
+    mLatest = task.mGeneration;
+    mDue = System.nanoTime() + delay * 1000000;
+    notify();
+  }
+
+  /**
+   * 世代generationより前の要求を全て無効にする
+   */
+  public synchronized void invalidate(int generation) {
+    mLatest = generation;
+    if (mPending != null && mPending.mGeneration != generation) mPending = null;
+  }
+
+  /**
+   * generationの要求がもう不要ならtrue。どのスレッドから呼んでもよい
+   */
+  public boolean isStale(int generation) {
+    return generation != mLatest;
+  }
+
+  public synchronized void quit() {
+    mQuit = true;
+    mPending = null;
+    notify();
+  }
+
+  public void run() {
+    while (true) {
+      Task task;
+      synchronized (this) {
+        while (!mQuit) {
+          try {
+            if (mPending == null) {
+              wait();
+            } else {
+              long rest = mDue - System.nanoTime();
+              if (rest <= 0) break;
+              wait(rest / 1000000, (int) (rest % 1000000));
+            }
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (mQuit) return;
+        task = mPending;
+        mPending = null;
+      }
+      if (!isStale(task.mGeneration)) task.run();
+    }
+  }
+}
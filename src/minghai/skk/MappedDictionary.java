@@ -0,0 +1,363 @@
+package minghai.skk;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * 読み取り専用のSKK辞書。ファイル全体をメモリマップし、ページキャッシュを
+ * そのまま使って検索する。検索中にオブジェクトの生成は行わない。
+ *
+ * 候補は辞書作成時に分割済みで、注釈(;以降)も別に格納してある。
+ * 存在しない読みは、先にBloomフィルタで弾くので辞書本体のページに触れない。
+ *
+ * ファイル形式 (ビッグエンディアン):
+ * <pre>
+ *   header           : magic, version, エントリ数, 候補数, 各セクションのバイトオフセット
+ *   key index        : int[entries + 1]     key blob内の文字オフセット
+ *   key blob         : char[]               読み (UTF-16, String.compareTo順にソート済み)
+ *   entry index      : int[entries + 1]     各エントリの最初の候補番号
+ *   word index       : int[candidates + 1]  word blob内の文字オフセット
+ *   word blob        : char[]               候補 (UTF-16)
+ *   annotation index : int[candidates + 1]  annotation blob内の文字オフセット
+ *   annotation blob  : char[]               注釈 (UTF-16, ない場合は長さ0)
+ *   completion ...   : 補完索引の5セクション (CompletionIndexWriter参照)
+ *   bloom filter     : byte[]               全ての読みを入れたBloomフィルタ
+ * </pre>
+ */
+public class MappedDictionary implements SKKDictionary {
+  static final int MAGIC = 0x534B4B44; // "SKKD"
+  static final int VERSION = 5;
+
+  static final int HEADER_SIZE = 128;
+  static final int HEADER_MAGIC = 0;
+  static final int HEADER_VERSION = 4;
+  static final int HEADER_COUNT = 8;
+  static final int HEADER_CANDIDATE_COUNT = 12;
+  // 以下はセクションの並び順
+  static final int HEADER_KEY_INDEX = 16;
+  static final int HEADER_KEY_BLOB = 20;
+  static final int HEADER_ENTRY_INDEX = 24;
+  static final int HEADER_WORD_INDEX = 28;
+  static final int HEADER_WORD_BLOB = 32;
+  static final int HEADER_ANNOTATION_INDEX = 36;
+  static final int HEADER_ANNOTATION_BLOB = 40;
+  static final int HEADER_COMPLETION_DEPTH = 44;
+  static final int HEADER_COMPLETION_PREFIX = 48;
+  static final int HEADER_COMPLETION_INDEX = 52;
+  static final int HEADER_COMPLETION_LIST = 56;
+  static final int HEADER_COMPLETION_SCORE = 60;
+  static final int HEADER_BLOOM = 64;
+  static final int HEADER_END = 68;
+  // セクション以外の情報
+  static final int HEADER_BLOOM_HASHES = 68;
+  static final int HEADER_COMPLETION_SIZE = 72;
+  static final int HEADER_COMPLETION_SCORING = 76;
+
+  private final String mPath;
+  private final RandomAccessFile mFile;
+  private final int mSize;
+  private final IntBuffer mKeyIndex;
+  private final CharBuffer mKeys;
+  private final IntBuffer mEntryIndex;
+  private final IntBuffer mWordIndex;
+  private final CharBuffer mWords;
+  private final IntBuffer mAnnotationIndex;
+  private final CharBuffer mAnnotations;
+  private final IntBuffer mCompletionDepth;
+  private final IntBuffer mCompletionPrefix;
+  private final IntBuffer mCompletionIndex;
+  private final IntBuffer mCompletionList;
+  private final LongBuffer mCompletionScore;
+  private final int mMaxCompletionDepth;
+  private final CompletionIndexWriter.Scoring mScoring;
+  private final BloomFilter mBloom;
+
+  // 統計情報。dumpで表示するだけなので厳密でなくてよい
+  private int mLookups = 0;
+  private int mBloomRejects = 0;
+  private int mFalsePositives = 0;
+
+  public MappedDictionary(String path) throws IOException {
+    mPath = path;
+    mFile = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = mFile.getChannel();
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      if (buf.limit() < HEADER_SIZE || buf.getInt(HEADER_MAGIC) != MAGIC) {
+        throw new IOException("Not a SKK dictionary: " + path);
+      }
+      if (buf.getInt(HEADER_VERSION) != VERSION) {
+        throw new IOException("Unsupported dictionary version " + buf.getInt(HEADER_VERSION) + ": " + path);
+      }
+
+      mSize = buf.getInt(HEADER_COUNT);
+      mKeyIndex = section(buf, HEADER_KEY_INDEX).asIntBuffer();
+      mKeys = section(buf, HEADER_KEY_BLOB).asCharBuffer();
+      mEntryIndex = section(buf, HEADER_ENTRY_INDEX).asIntBuffer();
+      mWordIndex = section(buf, HEADER_WORD_INDEX).asIntBuffer();
+      mWords = section(buf, HEADER_WORD_BLOB).asCharBuffer();
+      mAnnotationIndex = section(buf, HEADER_ANNOTATION_INDEX).asIntBuffer();
+      mAnnotations = section(buf, HEADER_ANNOTATION_BLOB).asCharBuffer();
+      mCompletionDepth = section(buf, HEADER_COMPLETION_DEPTH).asIntBuffer();
+      mCompletionPrefix = section(buf, HEADER_COMPLETION_PREFIX).asIntBuffer();
+      mCompletionIndex = section(buf, HEADER_COMPLETION_INDEX).asIntBuffer();
+      mCompletionList = section(buf, HEADER_COMPLETION_LIST).asIntBuffer();
+      mCompletionScore = section(buf, HEADER_COMPLETION_SCORE).asLongBuffer();
+      mMaxCompletionDepth = mCompletionDepth.limit() - 1;
+      CompletionIndexWriter.Scoring[] scorings = CompletionIndexWriter.Scoring.values();
+      int scoring = buf.getInt(HEADER_COMPLETION_SCORING);
+      if (scoring < 0 || scoring >= scorings.length) throw new IOException("Broken dictionary header");
+      mScoring = scorings[scoring];
+      mBloom = new BloomFilter(section(buf, HEADER_BLOOM), buf.getInt(HEADER_BLOOM_HASHES));
+    } catch (IOException e) {
+      mFile.close();
+      throw e;
+    }
+  }
+
+  // ヘッダに書かれたオフセットから次のセクションの先頭までを切り出す
+  private static ByteBuffer section(ByteBuffer buf, int field) throws IOException {
+    int start = buf.getInt(field);
+    int end = (field + 4 == HEADER_END) ? buf.limit() : buf.getInt(field + 4);
+    if (start < HEADER_SIZE || end < start || end > buf.limit()) {
+      throw new IOException("Broken dictionary header");
+    }
+    ByteBuffer dup = buf.duplicate();
+    dup.limit(end);
+    dup.position(start);
+    return dup.slice();
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  /**
+   * keyに一致するエントリの番号を返す。見つからなければ-1
+   */
+  public int indexOf(String key) {
+    int i = ceiling(key);
+    if (i < mSize && compareKey(i, key) == 0) return i;
+    return -1;
+  }
+
+  /**
+   * key以上となる最初のエントリの番号を返す。全てのエントリがkeyより小さければsize()
+   */
+  public int ceiling(String key) {
+    int lo = 0;
+    int hi = mSize;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (compareKey(mid, key) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  public String getKey(int index) {
+    return subString(mKeys, mKeyIndex.get(index), mKeyIndex.get(index + 1));
+  }
+
+  /**
+   * 索引の深さまでの接頭辞は索引を1回引くだけで済む。それより長い接頭辞は
+   * 該当する読みが少ないので、その範囲を順に辿る。
+   * 索引に入っているのは辞書作成時に指定した個数までなので、limitがそれより大きくても増えない
+   */
+  public List<Completion> complete(String prefix, int limit) {
+    ArrayList<Completion> list = new ArrayList<Completion>();
+    int len = prefix.length();
+    if (len == 0 || limit <= 0) return list;
+
+    if (len <= mMaxCompletionDepth) {
+      int lo = mCompletionDepth.get(len - 1);
+      int hi = mCompletionDepth.get(len);
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        int c = comparePrefix(mCompletionPrefix.get(mid), prefix);
+        if (c == 0) {
+          int start = mCompletionIndex.get(mid);
+          int end = Math.min(mCompletionIndex.get(mid + 1), start + limit);
+          for (int i = start; i < end; i++) {
+            list.add(new Completion(getKey(mCompletionList.get(i)), mCompletionScore.get(i)));
+          }
+          return list;
+        }
+        if (c < 0) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return list;
+    }
+
+    // 索引と同じ順になるよう、範囲の読みを全てスコアで並べ直す
+    for (int i = ceiling(prefix); i < mSize; i++) {
+      if (comparePrefix(i, prefix) != 0) break;
+      int klen = mKeyIndex.get(i + 1) - mKeyIndex.get(i);
+      if (klen == len || isOkuriKey(i)) continue;
+      int candidates = mEntryIndex.get(i + 1) - mEntryIndex.get(i);
+      list.add(new Completion(getKey(i), CompletionIndexWriter.score(mScoring, klen, candidates)));
+    }
+    Completion.top(list, limit);
+    return list;
+  }
+
+  /**
+   * 補完のスコアの付け方
+   */
+  CompletionIndexWriter.Scoring getCompletionScoring() {
+    return mScoring;
+  }
+
+  /**
+   * 送りありの読み("おくr"など)ならtrue。英単語の読みは含まない
+   */
+  static boolean isOkuriKey(CharSequence key) {
+    int len = key.length();
+    if (len < 2) return false;
+    char last = key.charAt(len - 1);
+    return last >= 'a' && last <= 'z' && key.charAt(len - 2) > 0x7F;
+  }
+
+  private boolean isOkuriKey(int index) {
+    int start = mKeyIndex.get(index);
+    int end = mKeyIndex.get(index + 1);
+    if (end - start < 2) return false;
+    char last = mKeys.get(end - 1);
+    return last >= 'a' && last <= 'z' && mKeys.get(end - 2) > 0x7F;
+  }
+
+  /**
+   * 読みに対応する候補のリストを返す。見つからなければnull
+   * 候補の文字列はget()した時に初めて作られる。
+   */
+  public CandidateList findCandidates(String key) {
+    mLookups++;
+    if (!mBloom.mightContain(key)) {
+      mBloomRejects++;
+      return null;
+    }
+
+    int i = indexOf(key);
+    if (i < 0) {
+      mFalsePositives++;
+      return null;
+    }
+
+    int first = mEntryIndex.get(i);
+    int end = mEntryIndex.get(i + 1);
+    if (first == end) return null;
+
+    return new CandidateList(first, end);
+  }
+
+  @Override
+  public String toString() {
+    int misses = mBloomRejects + mFalsePositives;
+    return "MappedDictionary(" + mPath + "): " + mSize + " entries, " + mLookups + " lookups, "
+      + misses + " misses (" + mBloomRejects + " rejected by bloom filter, "
+      + mFalsePositives + " false positives = "
+      + ((misses == 0) ? 0 : mFalsePositives * 1000 / misses / 10.0) + "%)";
+  }
+
+  public void close() {
+    try {
+      mFile.close();
+    } catch (IOException e) {
+      // 読み取り専用なので失うものはない
+    }
+  }
+
+  /**
+   * 1つの読みに対応する候補の並び。変更はできない。
+   */
+  public class CandidateList extends AbstractList<String> implements RandomAccess {
+    private final int mFirst;
+    private final int mCount;
+
+    CandidateList(int first, int end) {
+      mFirst = first;
+      mCount = end - first;
+    }
+
+    @Override
+    public String get(int index) {
+      int c = candidate(index);
+      return subString(mWords, mWordIndex.get(c), mWordIndex.get(c + 1));
+    }
+
+    @Override
+    public int size() {
+      return mCount;
+    }
+
+    /**
+     * 候補の注釈を返す。注釈がなければnull
+     */
+    public String getAnnotation(int index) {
+      int c = candidate(index);
+      int start = mAnnotationIndex.get(c);
+      int end = mAnnotationIndex.get(c + 1);
+      return (start == end) ? null : subString(mAnnotations, start, end);
+    }
+
+    private int candidate(int index) {
+      if (index < 0 || index >= mCount) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mCount);
+      }
+      return mFirst + index;
+    }
+  }
+
+  // String.compareTo()と同じ順序で比較する
+  private int compareKey(int index, String key) {
+    int start = mKeyIndex.get(index);
+    int len = mKeyIndex.get(index + 1) - start;
+    int klen = key.length();
+    int n = Math.min(len, klen);
+    for (int i = 0; i < n; i++) {
+      char c1 = mKeys.get(start + i);
+      char c2 = key.charAt(i);
+      if (c1 != c2) return c1 - c2;
+    }
+    return len - klen;
+  }
+
+  // 読みの先頭prefix.length()文字をprefixと比べる。読みの方が短ければ負
+  private int comparePrefix(int index, String prefix) {
+    int start = mKeyIndex.get(index);
+    int len = mKeyIndex.get(index + 1) - start;
+    int plen = prefix.length();
+    int n = Math.min(len, plen);
+    for (int i = 0; i < n; i++) {
+      char c1 = mKeys.get(start + i);
+      char c2 = prefix.charAt(i);
+      if (c1 != c2) return c1 - c2;
+    }
+    return (len < plen) ? -1 : 0;
+  }
+
+  private static String subString(CharBuffer buf, int start, int end) {
+    char[] chars = new char[end - start];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = buf.get(start + i);
+    }
+    return new String(chars);
+  }
+}
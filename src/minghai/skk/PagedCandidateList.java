@@ -0,0 +1,71 @@
+package minghai.skk;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.RandomAccess;
+
+/**
+ * 候補を必要な分だけ取り出すリスト。最初は1画面分(PAGE_SIZE)だけ取り出し、
+ * 続きは選択や候補のスクロールで足りなくなった時にloadMore()で取り出す。
+ * size()は取り出し済みの数で、loadMore()のたびに後ろに増えていく。
+ *
+ * 同音語が何百あっても、変換してから最初の候補が出るまでの時間は変わらない。
+ * メインスレッドからだけ使うこと。
+ */
+public class PagedCandidateList extends AbstractList<String> implements RandomAccess {
+  /** 1回に取り出す候補の数 */
+  public static final int PAGE_SIZE = 16;
+
+  /**
+   * loadMore()で候補が増えたことを知らせる。CandidateCacheが容量を数え直すのに使う
+   */
+  public interface OnLoadListener {
+    void onLoad(PagedCandidateList list, int count);
+  }
+
+  private final Iterator<String> mSource;
+  private final ArrayList<String> mLoaded = new ArrayList<String>(PAGE_SIZE);
+  private OnLoadListener mListener;
+
+  /**
+   * @param source 候補を順に返す。重複は取り除いておくこと
+   */
+  public PagedCandidateList(Iterator<String> source) {
+    mSource = source;
+    loadMore(PAGE_SIZE);
+  }
+
+  @Override
+  public String get(int index) {
+    return mLoaded.get(index);
+  }
+
+  @Override
+  public int size() {
+    return mLoaded.size();
+  }
+
+  public void setOnLoadListener(OnLoadListener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * まだ取り出していない候補があればtrue
+   */
+  public boolean hasMore() {
+    return mSource.hasNext();
+  }
+
+  /**
+   * 最大count個の候補を取り出して後ろに足す。足した数を返す
+   */
+  public int loadMore(int count) {
+    int n = 0;
+    for (; n < count && mSource.hasNext(); n++) {
+      mLoaded.add(mSource.next());
+    }
+    if (n > 0 && mListener != null) mListener.onLoad(this, n);
+    return n;
+  }
+}
@@ -0,0 +1,173 @@
+package minghai.skk;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * ローマ字の文字列をまとめてかなにする。RomajiTableを1文字ずつ進めるだけで、
+ * 入力の長さに関わらずオブジェクトは作らない。
+ *
+ * convert()は何回かに分けて呼んでよく、最後の未確定のローマ字("k"や"n"など)は
+ * 次のconvert()に持ち越す。入力の終わりでflush()を呼ぶと残りを出力する。
+ * 対話的な入力と違い、続かなくなったローマ字は捨てずにそのまま出力する。
+ *
+ * デスクトップのJVMでも動くので、テキストの一括変換にも使える。
+ * <pre>
+ * java -cp bin minghai.skk.RomajiConverter [-r 規則ファイル] [-k] &lt; romaji.txt &gt; kana.txt
+ * </pre>
+ */
+public class RomajiConverter {
+  private final RomajiTable mTable;
+  private final StringBuilder mPending = new StringBuilder();
+  private int mState = RomajiTable.ROOT;
+  private boolean mKatakana = false;
+
+  public RomajiConverter(RomajiTable table) {
+    mTable = table;
+  }
+
+  /**
+   * trueならカタカナを出力する
+   */
+  public void setKatakana(boolean katakana) {
+    mKatakana = katakana;
+  }
+
+  /**
+   * srcを変換してdstの後ろに足す
+   */
+  public void convert(CharSequence src, StringBuilder dst) {
+    for (int i = 0, len = src.length(); i < len; i++) {
+      feed(src.charAt(i), dst);
+    }
+  }
+
+  public void convert(char[] src, int offset, int length, StringBuilder dst) {
+    for (int i = offset, end = offset + length; i < end; i++) {
+      feed(src[i], dst);
+    }
+  }
+
+  private void feed(char c, StringBuilder dst) {
+    RomajiTable t = mTable;
+    int next = t.next(mState, c);
+    if (next == RomajiTable.NONE) {
+      if (mState != RomajiTable.ROOT) {
+        // "n"のようにそのままかなにできればかなに、できなければローマ字のまま出す
+        String kana = kana(mState);
+        if (kana != null) {
+          dst.append(kana);
+        } else {
+          dst.append(mPending);
+        }
+        mPending.setLength(0);
+        mState = RomajiTable.ROOT;
+        next = t.next(RomajiTable.ROOT, c);
+      }
+      if (next == RomajiTable.NONE) {
+        dst.append(c);
+        return;
+      }
+    }
+
+    if (t.hasNext(next)) {
+      mState = next;
+      mPending.append(c);
+      return;
+    }
+    dst.append(kana(next));
+    mPending.setLength(0);
+    mState = RomajiTable.ROOT;
+    // "kk"の後の"k"のように残すローマ字は入力し直す
+    String rest = t.getRest(next);
+    for (int i = 0; i < rest.length(); i++) {
+      feed(rest.charAt(i), dst);
+    }
+  }
+
+  private String kana(int state) {
+    return mKatakana ? mTable.getKatakana(state) : mTable.getKana(state);
+  }
+
+  /**
+   * まだかなになっていないローマ字
+   */
+  public CharSequence getPending() {
+    return mPending;
+  }
+
+  /**
+   * 入力の終わり。残りのローマ字をかなにできればかなで、できなければそのまま出力する
+   */
+  public void flush(StringBuilder dst) {
+    if (mState != RomajiTable.ROOT) {
+      String kana = kana(mState);
+      if (kana != null) {
+        dst.append(kana);
+      } else {
+        dst.append(mPending);
+      }
+    }
+    reset();
+  }
+
+  /**
+   * 残りのローマ字を捨てる
+   */
+  public void reset() {
+    mPending.setLength(0);
+    mState = RomajiTable.ROOT;
+  }
+
+  public static void main(String[] args) {
+    File rules = null;
+    boolean katakana = false;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-r") && i + 1 < args.length) {
+        rules = new File(args[++i]);
+      } else if (args[i].equals("-k")) {
+        katakana = true;
+      } else {
+        System.err.println("usage: RomajiConverter [-r rules] [-k] < input > output");
+        System.exit(2);
+      }
+    }
+
+    try {
+      RomajiTable table = (rules != null) ? RomajiTable.parse(rules) : RomajiTable.createDefault();
+      RomajiConverter converter = new RomajiConverter(table);
+      converter.setKatakana(katakana);
+
+      Reader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"), 64 * 1024);
+      Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"), 64 * 1024);
+      char[] buf = new char[16 * 1024];
+      StringBuilder dst = new StringBuilder(buf.length * 2);
+      long chars = 0;
+      long start = System.currentTimeMillis();
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        dst.setLength(0);
+        converter.convert(buf, 0, n, dst);
+        out.append(dst);
+        chars += n;
+      }
+      dst.setLength(0);
+      converter.flush(dst);
+      out.append(dst);
+      out.flush();
+
+      long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+      System.err.println(chars + " chars in " + elapsed + "ms, "
+          + String.format("%.1f", chars / 1024.0 / 1024.0 * 1000 / elapsed) + " Mchars/s");
+    } catch (IOException e) {
+      System.err.println(e);
+      System.exit(1);
+    }
+  }
+}
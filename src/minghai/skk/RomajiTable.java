@@ -0,0 +1,413 @@
+package minghai.skk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * ローマ字→かなの変換表をDFAにしたもの。1文字ずつ状態を進めるだけで、
+ * 変換中にオブジェクトは作らない。
+ *
+ * 状態は「ここまでのローマ字」に対応し、次のどれかになる。
+ * <ul>
+ * <li>かなが確定する ("ka"): getKana()がかな、hasNext()がfalse</li>
+ * <li>続きがある ("k", "ky"): hasNext()がtrue。"n"のように、続かなければそのまま
+ *     かなにできる状態はgetKana()もnullでない</li>
+ * <li>無効: NONE</li>
+ * </ul>
+ * "kk" → "っ" のように、かなを出した後にローマ字を残す規則はgetRest()で残りを返す。
+ *
+ * 遷移はローマ字に現れる文字だけを番号(文字クラス)に詰めた表で引く。
+ * 規則の数が増えても1文字あたりの処理は表を1回引くだけで変わらない。
+ *
+ * AZIKなどの規則はファイルから読み込める(load()参照)。1行に1つ、
+ * 「ローマ字 かな [残すローマ字]」をタブか空白で区切って書く。'#'で始まる行は無視する。
+ * Google日本語入力のローマ字テーブル(TSV)もそのまま読める。
+ * 読み込んだ結果は遷移表のままキャッシュファイルに保存し、規則ファイルが
+ * 変わらなければ次からはそれを読むだけで済ませる。
+ */
+public class RomajiTable {
+  public static final int ROOT = 0;
+  public static final int NONE = -1;
+
+  // ローマ字に使える文字はASCIIだけ
+  private static final int ASCII = 128;
+
+  // キャッシュファイルの形式。標準の規則を変えた時も上げること
+  static final int CACHE_MAGIC = 0x524F4D41; // "ROMA"
+  static final int CACHE_VERSION = 1;
+
+  private final byte[] mClass;
+  private final int mClasses;
+  private final int[] mNext;
+  private final String[] mKana;
+  private final String[] mKatakana;
+  private final String[] mRest;
+  private final boolean[] mHasNext;
+
+  private RomajiTable(byte[] cls, int classes, int[] next, String[] kana, String[] rest, boolean[] hasNext) {
+    mClass = cls;
+    mClasses = classes;
+    mNext = next;
+    mKana = kana;
+    mRest = rest;
+    mHasNext = hasNext;
+
+    // カタカナ入力のたびに変換しないよう、先に作っておく
+    mKatakana = new String[kana.length];
+    StringBuilder sb = new StringBuilder();
+    for (int s = 0; s < kana.length; s++) {
+      if (kana[s] == null) continue;
+      sb.setLength(0);
+      KanaConverter.toKatakana(kana[s], sb);
+      mKatakana[s] = sb.toString();
+    }
+  }
+
+  /**
+   * stateからcを入力した次の状態。続かなければNONE
+   */
+  public int next(int state, int c) {
+    if (state < 0 || c < 0 || c >= ASCII) return NONE;
+    int cls = mClass[c];
+    if (cls < 0) return NONE;
+    return mNext[state * mClasses + cls];
+  }
+
+  /**
+   * ROOTからsを入力した状態。途中で続かなくなればNONE
+   */
+  public int walk(CharSequence s) {
+    int state = ROOT;
+    for (int i = 0, len = s.length(); i < len && state != NONE; i++) {
+      state = next(state, s.charAt(i));
+    }
+    return state;
+  }
+
+  /**
+   * 状態で確定するかな。なければnull
+   */
+  public String getKana(int state) {
+    return (state < 0) ? null : mKana[state];
+  }
+
+  /**
+   * getKana()のカタカナ版
+   */
+  public String getKatakana(int state) {
+    return (state < 0) ? null : mKatakana[state];
+  }
+
+  /**
+   * かなを出した後に残すローマ字。なければ""
+   */
+  public String getRest(int state) {
+    return (state < 0 || mRest[state] == null) ? "" : mRest[state];
+  }
+
+  /**
+   * 続きの入力がありうるならtrue
+   */
+  public boolean hasNext(int state) {
+    return state >= 0 && mHasNext[state];
+  }
+
+  public int getStateCount() {
+    return mKana.length;
+  }
+
+  /**
+   * 標準の規則にrulesの規則を足した表を返す。rulesがなければ標準の表。
+   * cacheにrulesと同じ更新日時と大きさの表が保存してあればそれを読むだけで済ませ、
+   * なければ規則を読んで表を作りcacheに保存する
+   */
+  public static RomajiTable load(File rules, File cache) throws IOException {
+    if (!rules.isFile()) return createDefault();
+    long modified = rules.lastModified();
+    long length = rules.length();
+
+    if (cache.isFile()) {
+      try {
+        RomajiTable table = readCache(cache, modified, length);
+        if (table != null) return table;
+      } catch (IOException e) {
+        // 壊れていれば作り直す
+      }
+    }
+
+    RomajiTable table = parse(rules);
+    try {
+      table.writeCache(cache, modified, length);
+    } catch (IOException e) {
+      // 次回また規則を読むだけなので無視
+      cache.delete();
+    }
+    return table;
+  }
+
+  /**
+   * 標準の規則にrulesの規則を足した表を作る。キャッシュは使わない
+   */
+  public static RomajiTable parse(File rules) throws IOException {
+    Builder b = defaultRules();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(rules), "UTF-8"));
+    try {
+      b.addRules(in);
+    } finally {
+      in.close();
+    }
+    return b.build();
+  }
+
+  private static RomajiTable readCache(File cache, long modified, long length) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache), 16 * 1024));
+    try {
+      if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION
+          || in.readLong() != modified || in.readLong() != length) {
+        return null;
+      }
+      byte[] cls = new byte[ASCII];
+      in.readFully(cls);
+      int classes = in.readInt();
+      int states = in.readInt();
+      int[] next = new int[states * classes];
+      for (int i = 0; i < next.length; i++) {
+        next[i] = in.readInt();
+      }
+      String[] kana = new String[states];
+      String[] rest = new String[states];
+      boolean[] hasNext = new boolean[states];
+      for (int s = 0; s < states; s++) {
+        kana[s] = readString(in);
+        rest[s] = readString(in);
+        hasNext[s] = in.readBoolean();
+      }
+      return new RomajiTable(cls, classes, next, kana, rest, hasNext);
+    } finally {
+      in.close();
+    }
+  }
+
+  // 一時ファイルに書いてから置き換える
+  private void writeCache(File cache, long modified, long length) throws IOException {
+    File tmp = new File(cache.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 16 * 1024));
+    try {
+      out.writeInt(CACHE_MAGIC);
+      out.writeInt(CACHE_VERSION);
+      out.writeLong(modified);
+      out.writeLong(length);
+      out.write(mClass);
+      out.writeInt(mClasses);
+      out.writeInt(mKana.length);
+      for (int n : mNext) {
+        out.writeInt(n);
+      }
+      for (int s = 0; s < mKana.length; s++) {
+        writeString(out, mKana[s]);
+        writeString(out, mRest[s]);
+        out.writeBoolean(mHasNext[s]);
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(cache)) {
+      tmp.delete();
+      throw new IOException("Cannot rename " + tmp + " to " + cache);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) out.writeUTF(s);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  /**
+   * 規則を集めてRomajiTableを作る。同じローマ字の規則は後から足したものが優先する
+   */
+  public static class Builder {
+    private final TreeMap<String, String[]> mRules = new TreeMap<String, String[]>();
+
+    public Builder add(String romaji, String kana) {
+      return add(romaji, kana, null);
+    }
+
+    /**
+     * @param rest かなを出した後に残すローマ字。なければnull
+     */
+    public Builder add(String romaji, String kana, String rest) {
+      if (romaji.length() == 0) throw new IllegalArgumentException("Empty romaji");
+      for (int i = 0; i < romaji.length(); i++) {
+        if (romaji.charAt(i) >= ASCII) throw new IllegalArgumentException("Not ASCII: " + romaji);
+      }
+      mRules.put(romaji, new String[] { kana, (rest == null || rest.length() == 0) ? null : rest });
+      return this;
+    }
+
+    public int size() {
+      return mRules.size();
+    }
+
+    /**
+     * 規則を1行ずつ読んで足す。読めない行は飛ばし、その数を返す
+     */
+    public int addRules(BufferedReader in) throws IOException {
+      int rejected = 0;
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.length() == 0 || line.charAt(0) == '#') continue;
+        String[] f = line.split("[\\t ]+");
+        if (f.length < 2 || f.length > 3) {
+          rejected++;
+          continue;
+        }
+        try {
+          add(f[0], f[1], (f.length == 3) ? f[2] : null);
+        } catch (IllegalArgumentException e) {
+          rejected++;
+        }
+      }
+      return rejected;
+    }
+
+    public RomajiTable build() {
+      // 文字クラス
+      byte[] cls = new byte[ASCII];
+      Arrays.fill(cls, (byte) -1);
+      int classes = 0;
+      for (String romaji : mRules.keySet()) {
+        for (int i = 0; i < romaji.length(); i++) {
+          char c = romaji.charAt(i);
+          if (cls[c] < 0) cls[c] = (byte) classes++;
+        }
+      }
+
+      // トライを作る。状態0がROOT
+      ArrayList<int[]> next = new ArrayList<int[]>();
+      ArrayList<String[]> out = new ArrayList<String[]>();
+      next.add(newRow(classes));
+      out.add(null);
+      for (Map.Entry<String, String[]> e : mRules.entrySet()) {
+        String romaji = e.getKey();
+        int state = ROOT;
+        for (int i = 0; i < romaji.length(); i++) {
+          int[] row = next.get(state);
+          int c = cls[romaji.charAt(i)];
+          if (row[c] == NONE) {
+            row[c] = next.size();
+            next.add(newRow(classes));
+            out.add(null);
+          }
+          state = row[c];
+        }
+        out.set(state, e.getValue());
+      }
+
+      int states = next.size();
+      int[] table = new int[states * classes];
+      String[] kana = new String[states];
+      String[] rest = new String[states];
+      boolean[] hasNext = new boolean[states];
+      for (int s = 0; s < states; s++) {
+        int[] row = next.get(s);
+        System.arraycopy(row, 0, table, s * classes, classes);
+        for (int c = 0; c < classes; c++) {
+          if (row[c] != NONE) hasNext[s] = true;
+        }
+        String[] o = out.get(s);
+        if (o != null) {
+          kana[s] = o[0];
+          rest[s] = o[1];
+        }
+      }
+      return new RomajiTable(cls, classes, table, kana, rest, hasNext);
+    }
+
+    private static int[] newRow(int classes) {
+      int[] row = new int[classes];
+      Arrays.fill(row, NONE);
+      return row;
+    }
+  }
+
+  // 促音にする子音。"kk" → "っ" + "k"
+  private static final String SOKUON = "bcdfghjkmpqrstvwxyz";
+
+  /**
+   * 標準のローマ字表
+   */
+  public static RomajiTable createDefault() {
+    return defaultRules().build();
+  }
+
+  // 標準の規則を入れたBuilder。ファイルの規則はこの上に足す
+  private static Builder defaultRules() {
+    Builder b = new Builder();
+    String[][] rules = {
+      { "a", "あ" }, { "i", "い" }, { "u", "う" }, { "e", "え" }, { "o", "お" },
+      { "ka", "か" }, { "ki", "き" }, { "ku", "く" }, { "ke", "け" }, { "ko", "こ" },
+      { "sa", "さ" }, { "si", "し" }, { "su", "す" }, { "se", "せ" }, { "so", "そ" },
+      { "ta", "た" }, { "ti", "ち" }, { "tu", "つ" }, { "te", "て" }, { "to", "と" },
+      { "na", "な" }, { "ni", "に" }, { "nu", "ぬ" }, { "ne", "ね" }, { "no", "の" },
+      { "ha", "は" }, { "hi", "ひ" }, { "hu", "ふ" }, { "he", "へ" }, { "ho", "ほ" },
+      { "ma", "ま" }, { "mi", "み" }, { "mu", "む" }, { "me", "め" }, { "mo", "も" },
+      { "ya", "や" },                 { "yu", "ゆ" },                 { "yo", "よ" },
+      { "ra", "ら" }, { "ri", "り" }, { "ru", "る" }, { "re", "れ" }, { "ro", "ろ" },
+      { "wa", "わ" }, { "wi", "うぃ" }, { "we", "うぇ" }, { "wo", "を" }, { "nn", "ん" },
+      { "ga", "が" }, { "gi", "ぎ" }, { "gu", "ぐ" }, { "ge", "げ" }, { "go", "ご" },
+      { "za", "ざ" }, { "zi", "じ" }, { "zu", "ず" }, { "ze", "ぜ" }, { "zo", "ぞ" },
+      { "da", "だ" }, { "di", "ぢ" }, { "du", "づ" }, { "de", "で" }, { "do", "ど" },
+      { "ba", "ば" }, { "bi", "び" }, { "bu", "ぶ" }, { "be", "べ" }, { "bo", "ぼ" },
+      { "pa", "ぱ" }, { "pi", "ぴ" }, { "pu", "ぷ" }, { "pe", "ぺ" }, { "po", "ぽ" },
+      { "va", "う゛ぁ" }, { "vi", "う゛ぃ" }, { "vu", "う゛" }, { "ve", "う゛ぇ" }, { "vo", "う゛ぉ" },
+
+      { "xa", "ぁ" }, { "xi", "ぃ" }, { "xu", "ぅ" }, { "xe", "ぇ" }, { "xo", "ぉ" },
+      { "xtu", "っ" }, { "xke", "ヶ" },
+      { "cha", "ちゃ" }, { "chi", "ち" }, { "chu", "ちゅ" }, { "che", "ちぇ" }, { "cho", "ちょ" },
+      { "fa", "ふぁ" }, { "fi", "ふぃ" }, { "fu", "ふぅ" }, { "fe", "ふぇ" }, { "fo", "ふぉ" },
+
+      { "xya", "ゃ" },                   { "xyu", "ゅ" },                   { "xyo", "ょ" },
+      { "kya", "きゃ" },                 { "kyu", "きゅ" },                 { "kyo", "きょ" },
+      { "gya", "ぎゃ" },                 { "gyu", "ぎゅ" },                 { "gyo", "ぎょ" },
+      { "sya", "しゃ" },                 { "syu", "しゅ" },                 { "syo", "しょ" },
+      { "sha", "しゃ" }, { "shi", "し" }, { "shu", "しゅ" }, { "she", "しぇ" }, { "sho", "しょ" },
+      { "ja", "じゃ" }, { "ji", "じ" }, { "ju", "じゅ" }, { "je", "じぇ" }, { "jo", "じょ" },
+      { "tya", "ちゃ" },                 { "tyu", "ちゅ" }, { "tye", "ちぇ" }, { "tyo", "ちょ" },
+      { "dha", "でゃ" }, { "dhi", "でぃ" }, { "dhu", "でゅ" }, { "dhe", "でぇ" }, { "dho", "でょ" },
+      { "dya", "ぢゃ" }, { "dyi", "ぢぃ" }, { "dyu", "ぢゅ" }, { "dye", "ぢぇ" }, { "dyo", "ぢょ" },
+      { "nya", "にゃ" },                 { "nyu", "にゅ" },                 { "nyo", "にょ" },
+      { "hya", "ひゃ" },                 { "hyu", "ひゅ" },                 { "hyo", "ひょ" },
+      { "pya", "ぴゃ" },                 { "pyu", "ぴゅ" },                 { "pyo", "ぴょ" },
+      { "bya", "びゃ" },                 { "byu", "びゅ" },                 { "byo", "びょ" },
+      { "mya", "みゃ" },                 { "myu", "みゅ" },                 { "myo", "みょ" },
+      { "rya", "りゃ" },                 { "ryu", "りゅ" }, { "rye", "りぇ" }, { "ryo", "りょ" },
+    };
+    for (String[] r : rules) {
+      b.add(r[0], r[1]);
+    }
+    // 子音の前の"n"は"ん"になる
+    b.add("n", "ん");
+    for (int i = 0; i < SOKUON.length(); i++) {
+      char c = SOKUON.charAt(i);
+      b.add(new String(new char[] { c, c }), "っ", String.valueOf(c));
+    }
+    return b;
+  }
+}
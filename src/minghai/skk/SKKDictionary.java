@@ -0,0 +1,56 @@
+package minghai.skk;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 読みから候補を引く辞書。システム辞書、追加辞書、ユーザー辞書が実装する。
+ * 読みの順序は全てString.compareTo()順とする。
+ */
+public interface SKKDictionary {
+  /**
+   * 補完する読みとそのスコア。スコアはCompletionIndexWriter.score()の尺度で、大きいほど先に出す
+   */
+  class Completion {
+    public final String key;
+    public final long score;
+
+    public Completion(String key, long score) {
+      this.key = key;
+      this.score = score;
+    }
+
+    private static final Comparator<Completion> BY_SCORE = new Comparator<Completion>() {
+      public int compare(Completion a, Completion b) {
+        return (a.score > b.score) ? -1 : (a.score < b.score) ? 1 : 0;
+      }
+    };
+
+    /**
+     * listをスコアの高い順に並べ、先頭のlimit個だけ残す。同点なら元の順のまま
+     */
+    static void top(List<Completion> list, int limit) {
+      Collections.sort(list, BY_SCORE);
+      if (list.size() > limit) list.subList(limit, list.size()).clear();
+    }
+
+    @Override
+    public String toString() {
+      return key + ":" + score;
+    }
+  }
+
+  /**
+   * 読みに対応する候補のリストを返す。見つからなければnull
+   */
+  List<String> findCandidates(String key);
+
+  /**
+   * prefixで始まりprefixより長い読みを、スコアの高い順に最大limit個返す。
+   * 送りありの読みは含まない。見つからなければ空のリスト
+   */
+  List<Completion> complete(String prefix, int limit);
+
+  void close();
+}
@@ -0,0 +1,1001 @@
+package minghai.skk;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static minghai.skk.InputMode.*;
+
+/**
+ * SKKの変換の状態とキー入力の処理。Androidには依存しないので、
+ * SoftKeyboardから切り離してデスクトップのJVMでも動かせる。
+ *
+ * 入力はonKey()などで受け取り、結果はOutputに渡す。メソッドは全て同じスレッドから呼ぶこと。
+ * 辞書にない読みを変換しようとすると辞書登録(REGISTER)になる。登録中は出力先を
+ * 登録する単語のバッファに切り替え、普段と同じ入力と変換で単語を入力する。
+ * 補完候補の検索はワーカースレッドで行い、結果はmainThreadで渡したExecutorで
+ * 元のスレッドに戻してから表示する。mainThreadがnullなら補完もその場で検索する。
+ */
+public class SkkEngine {
+  /**
+   * 変換結果の出力先。InputConnectionと候補の表示に相当する
+   */
+  public interface Output {
+    void commitText(CharSequence text, int newCursorPosition);
+
+    void setComposingText(CharSequence text, int newCursorPosition);
+
+    /**
+     * エディタにEnterキーを送る
+     */
+    void sendEnter();
+
+    /**
+     * エディタにDELキーを送る
+     */
+    void sendBackspace();
+
+    void showCandidates(List<String> candidates, boolean completions, boolean typedWordValid);
+
+    /**
+     * index番目の候補を選択中にする
+     */
+    void chooseCandidate(int index);
+  }
+
+  // 変換時に辞書の読み込みを待つ最大時間(ms)。間に合わなければ変換しない
+  static final long DICTIONARY_WAIT = 300;
+  // 変換結果キャッシュの容量(候補の総数)
+  static final int CANDIDATE_CACHE_SIZE = 4096;
+  // 補完候補の数
+  static final int COMPLETION_SIZE = 6;
+  // 候補の表示を遅らせる時間(ms)。1フレーム分の間に次のキーが来たら前の状態の候補は検索も表示もしない
+  static final long CANDIDATE_DELAY = 16;
+
+  // 今の出力先。辞書登録中はmRegisterOutputになる
+  private Output mOutput;
+  private final Output mEditorOutput;
+  private final String mWordSeparators;
+  private final DictionaryLoader mDictionaryLoader;
+  private final Executor mMainThread;
+
+  private StringBuilder mComposing = new StringBuilder();
+  private StringBuilder mKanji = new StringBuilder();
+  // かなの変換結果を入れる使い回しのバッファ
+  private StringBuilder mKanaBuffer = new StringBuilder();
+
+  private List<String> mSuggestions;
+  private int mChoosedIndex;
+
+  private InputMode mInputMode = HIRAKANA;
+  private boolean isOkurigana = false;
+  private String mOkurigana = null;
+  private List<String> mCandidateList;
+  // 今表示している変換候補を引いた読み。確定した時に学習する
+  private String mLookupKey = null;
+
+  // 入力中の候補の検索と表示は入力が止まるまで遅らせ、ワーカースレッドで行う。
+  // mCandidateGenerationが変わった後の結果は捨てる
+  private LookupWorker mLookupWorker;
+  private int mCandidateGeneration = 0;
+  private CandidateCache mCandidateCache = new CandidateCache(CANDIDATE_CACHE_SIZE);
+
+  // 辞書登録。mRegisterKeyは登録する読みで、登録中でなければnull
+  private String mRegisterKey = null;
+  // 送りありの登録なら送り仮名の子音。登録後にここから送り仮名を続ける
+  private String mRegisterOkuri = null;
+  // 登録を取り消した時に戻す状態
+  private InputMode mRegisterMode;
+  private String mRegisterKanji;
+  private String mRegisterComposing;
+  // 登録する単語。確定した文字はここに入る
+  private final StringBuilder mRegisterWord = new StringBuilder();
+  // 単語の後ろに表示する入力中の文字列
+  private CharSequence mRegisterPending = "";
+
+  // ローマ字変換表。未確定のローマ字はmComposingに置く
+  private final RomajiTable mRomajiTable;
+  private final RomajiConverter mRomajiConverter;
+
+  /**
+   * @param wordSeparators 漢字変換を始める区切り文字
+   * @param dictionaries 開いておくのは呼び出し側で行う
+   * @param mainThread 補完候補の検索結果を元のスレッドに戻す。nullならその場で検索する
+   */
+  public SkkEngine(RomajiTable romajiTable, String wordSeparators, DictionaryLoader dictionaries,
+      Output output, Executor mainThread) {
+    mRomajiTable = romajiTable;
+    mRomajiConverter = new RomajiConverter(romajiTable);
+    mWordSeparators = wordSeparators;
+    mDictionaryLoader = dictionaries;
+    mEditorOutput = output;
+    mOutput = output;
+    mMainThread = mainThread;
+    if (mainThread != null) mLookupWorker = new LookupWorker("LookupWorker");
+  }
+
+  public void close() {
+    if (mLookupWorker != null) mLookupWorker.quit();
+  }
+
+  /**
+   * 辞書登録中は、単語を入力しているモードに関わらずREGISTER
+   */
+  public InputMode getInputMode() {
+    return (mRegisterKey != null) ? REGISTER : mInputMode;
+  }
+
+  public void setInputMode(InputMode mode) {
+    endRegister();
+    mInputMode = mode;
+  }
+
+  public int getChoosedIndex() {
+    return mChoosedIndex;
+  }
+
+  /**
+   * 入力中の文字列と候補を捨てる
+   */
+  public void reset() {
+    endRegister();
+    mComposing.setLength(0);
+    mKanji.setLength(0);
+    mCandidateList = null;
+    isOkurigana = false;
+    updateCandidates();
+  }
+
+  // ちょっとわかりづらいが、漢字モード(mInputMode == KANJI)とは漢字変換するためのひらがなを入力するモード
+  // 漢字にするひらがなが決定したときにモードは漢字選択モードのCHOOSEになる
+  /**
+   * 文字キーとEnter(0x0A)を処理する。
+   * シフト中の英字は呼び出し側で大文字にしておくこと
+   *
+   * @param shifted シフトキーが押されている
+   */
+  public void onKey(int pcode, boolean shifted) {
+    switch (pcode) {
+    case 0x0A: // Enter Key
+      switch (mInputMode) {
+      case CHOOSE:
+        pickSuggestion(mChoosedIndex);
+        break;
+      case ENG2JAP:
+        mOutput.commitText(mComposing, 1);
+        mComposing.setLength(0);
+        mInputMode = HIRAKANA;
+        updateCandidates();
+        break;
+      case KANJI:
+        mOutput.commitText(mKanji.append(mComposing), 1);
+        mComposing.setLength(0);
+        mKanji.setLength(0);
+        mInputMode = HIRAKANA;
+        break;
+      default:
+        mOutput.commitText(mKanji.append(mComposing), 1);
+        mComposing.setLength(0);
+        mKanji.setLength(0);
+        mOutput.sendEnter();
+        break;
+      }
+      return;
+    case 'l':
+      if (mInputMode == HIRAKANA || mInputMode == KATAKANA) {
+        commitTyped();
+        mInputMode = ALPHABET;
+        return;
+      }
+      break;
+    case 'L':
+      if (mInputMode != ALPHABET && mInputMode != ZENKAKU && mInputMode != ENG2JAP) {
+        commitTyped();
+        mInputMode = ZENKAKU;
+        return;
+      }
+      break;
+    case 'q':
+      if (mInputMode == ALPHABET || mInputMode == ENG2JAP || mInputMode == ZENKAKU)
+        break;
+
+      switch (mInputMode) {
+      case HIRAKANA:
+        mInputMode = KATAKANA;
+        break;
+      case KATAKANA:
+        mInputMode = HIRAKANA;
+        break;
+      case KANJI:
+        mInputMode = HIRAKANA;
+        if (mKanji.length() > 0) {
+          mKanaBuffer.setLength(0);
+          KanaConverter.toKatakana(mKanji, mKanaBuffer);
+          mOutput.commitText(mKanaBuffer, 1);
+          mKanji.setLength(0);
+        }
+        break;
+      }
+
+      if (mComposing.length() > 0) commitTyped();
+      return;
+    case '/':
+      if (mInputMode == HIRAKANA || mInputMode == KATAKANA) {
+        mInputMode = ENG2JAP;
+        return;
+      }
+      break;
+    }
+
+    // ALPHABETならcommitして終了
+    if (mInputMode == ALPHABET) {
+      mOutput.commitText(String.valueOf((char) pcode), 1);
+      return;
+    }
+
+    // Zenkakuなら全角変換しcommitして終了
+    if (mInputMode == ZENKAKU) {
+      pcode = KanaConverter.toFullwidth((char) pcode);
+      mOutput.commitText(String.valueOf((char) pcode), 1);
+      return;
+    }
+
+    // 英日変換なら区切り文字で確定するかそのままComposingに積む
+    if (mInputMode == ENG2JAP) {
+      if (isWordSeparator(pcode)) {
+        handleSeparator(pcode, mComposing);
+        return;
+      }
+
+      handleEnglish(pcode);
+      return;
+    }
+
+    if (mInputMode == CHOOSE) {
+      switch (pcode) {
+      case ' ':
+        chooseNext();
+        return;
+      case 'x':
+        // 先頭の候補から戻ると最後の候補に回らずに変換前に戻る
+        boolean wrapped = (mChoosedIndex == 0);
+        if (!wrapped) {
+          choosePrevious();
+        } else {
+          if (mKanji.length() != 0) {
+            // Back to Kanji
+            if (isOkurigana) mKanji.append(mOkurigana);
+            mOutput.setComposingText(mKanji, 1);
+            mInputMode = KANJI;
+          } else {
+            mOutput.setComposingText(mComposing, 1);
+            mInputMode = ENG2JAP;
+          }
+          setSuggestions(null, false, false);
+        }
+        return;
+      default:
+        pickSuggestion(mChoosedIndex);
+        mInputMode = HIRAKANA;
+        onKey(pcode, shifted);
+        return;
+      }
+    }
+
+    // 漢字モードで区切り文字の場合、変換開始
+    // ローマ字の規則にある文字(AZIKの";"など)は区切り文字にしない
+    if (isWordSeparator(pcode) && mInputMode == KANJI
+        && mRomajiTable.next(mRomajiTable.walk(mComposing), pcode) == RomajiTable.NONE) {
+      // 最後のローマ字がそのままかなにできる場合('n'など)、かなに変換
+      String kana = mRomajiTable.getKana(mRomajiTable.walk(mComposing));
+      if (kana != null) {
+        mKanji.append(kana);
+        mComposing.setLength(0);
+        mOutput.setComposingText(mKanji, 1);
+      }
+
+      handleSeparator(pcode, mKanji);
+      return;
+    }
+
+    // シフトキーの処理
+    boolean isUpper = Character.isUpperCase(pcode);
+    if (isUpper) { // ローマ字変換のために小文字に戻す
+      pcode = Character.toLowerCase(pcode);
+    }
+    // シフトキーを離すのが面倒なのでOKURIGANA決定時に大文字の時にはシフト無効
+    if (mInputMode == OKURIGANA && isUpper) {
+      isUpper = false;
+    }
+
+    // ここでは既に漢字変換モードであるか平仮名片仮名の入力であるので一部の記号は全角にする
+    // ただしローマ字の規則にある記号(AZIKの";"など)は規則に従う
+    if (mRomajiTable.next(mRomajiTable.walk(mComposing), pcode) == RomajiTable.NONE) {
+      pcode = changeSeparator2Zenkaku(pcode);
+    }
+
+    if (shifted || isUpper) {
+      // シフトキーが押されている状態：
+      // 漢字モードなら送り仮名開始であり変換を行なう。辞書のキーは漢字読み+送り仮名アルファベット1文字
+      // 最初の平仮名はついシフトキーを押しっぱなしにしてしまうため、mKanjiの長さをチェック
+      // mKanjiの長さが0の時はシフトが押されていなかったことにして下方へ継続させる
+      if (mKanji.length() > 0 && mInputMode == KANJI) {
+        mKanji.append((char) pcode); //辞書検索には送り仮名の子音文字が必要
+        mOutput.setComposingText(mKanji, 1);
+        List<String> cand = findKanji(mKanji.toString());
+        // dictionary
+        if (cand != null) {
+          mLookupKey = mKanji.toString();
+          isOkurigana = true;
+          mChoosedIndex = 0;
+
+          mComposing.setLength(0);
+          mKanji.deleteCharAt(mKanji.length() - 1); // 送り仮名の子音文字を取り除く
+
+          // 「あいうえお」のように1文字でかなになるなら即送り仮名決定
+          String str = appendRomaji(pcode);
+          if (str != null) {
+            mKanji.append(str);
+            mOkurigana = str;
+            mInputMode = CHOOSE;
+            setSuggestions(cand, true, true);
+            mOutput.setComposingText(cand.get(0).concat(str), 1); // 変換候補の最初をEditorViewに表示
+          } else { // それ以外は送り仮名モード
+            mInputMode = OKURIGANA;
+            mCandidateList = cand;
+            updateCandidates();
+          }
+        } else if (canRegister()) {
+          // 変換失敗、辞書登録
+          String key = mKanji.toString();
+          mComposing.append((char) pcode);
+          mKanji.deleteCharAt(mKanji.length() - 1); // 送り仮名の子音文字を取り除く
+          startRegister(key, String.valueOf((char) pcode));
+        } else {
+          mOutput.setComposingText(mKanji, 1);
+          mComposing.append((char) pcode);
+          mKanji.deleteCharAt(mKanji.length() - 1); // 送り仮名の子音文字を取り除く
+          mSuggestions = new ArrayList<String>();
+          mSuggestions.add(mDictionaryLoader.isDone() ? "IME：未登録" : "IME：辞書読み込み中");
+          setSuggestions(mSuggestions, false, false);
+        }
+
+        return;
+      } else if (mInputMode == HIRAKANA) {
+        // 平仮名なら漢字変換候補入力の開始。KANJIへの移行
+
+        // ローマ字の途中で漢字変換に入った場合、途中までのアルファベットを掃き出す
+        if (mComposing.length() > 0) {
+          mOutput.commitText(mComposing, 1);
+          mComposing.setLength(0);
+        }
+        mInputMode = KANJI;
+        // ここでは表示のみ修正し下へ抜けさせる
+        mOutput.setComposingText(mComposing, 1);
+        updateCandidates();
+      }
+    }
+
+    String hchr; // ひらがな、1ローマ字単位分、"あ、い、う、、きゃ、き、きゅ、、"
+    if (pcode == 'ー') {
+      hchr = "ー";
+    } else {
+      long start = KeyLatencyTracer.ENABLED ? System.nanoTime() : 0;
+      hchr = appendRomaji(pcode); // ローマ字からひらがなに変換
+      if (KeyLatencyTracer.ENABLED) KeyLatencyTracer.record(KeyLatencyTracer.ROMAJI, start);
+    }
+    if (hchr != null) {
+      // Success。"kk"の"k"のように続きのローマ字がmComposingに残ることがある
+      // KATAKANAならappendRomaji()が既にカタカナにしている
+      if (mInputMode == KANJI) {
+        mKanji.append(hchr);
+        mOutput.setComposingText(mKanji.toString().concat(mComposing.toString()), 1);
+      } else if (mInputMode == OKURIGANA && mComposing.length() > 0) {
+        // "っ"や"ん"の後にまだ送り仮名が続く
+        mOkurigana = (mOkurigana == null) ? hchr : mOkurigana.concat(hchr);
+        mKanji.append(hchr);
+        mOutput.setComposingText(mKanji.toString().concat(mComposing.toString()), 1);
+        return;
+      } else if (mInputMode == OKURIGANA) {
+        setSuggestions(mCandidateList, false, true);
+        mInputMode = CHOOSE;
+        mOkurigana = (mOkurigana == null) ? hchr : mOkurigana.concat(hchr);
+        if (mCandidateList != null)
+          mOutput.setComposingText(mCandidateList.get(mChoosedIndex).concat(mOkurigana), 1);
+        return;
+      } else {
+        mOutput.commitText(hchr, 1);
+        if (mRomajiTable.walk(mComposing) == RomajiTable.NONE) {
+          // ローマ字でない文字はそのまま確定
+          mOutput.commitText(mComposing, 1);
+          mComposing.setLength(0);
+        } else if (mComposing.length() > 0) {
+          mOutput.setComposingText(mComposing, 1);
+        }
+      }
+
+      updateCandidates();
+      return;
+    }
+
+    // 表示して終了:
+    // ここに来たならmInputModeに限らず未確定
+    switch (mInputMode) {
+    case HIRAKANA:
+    case KATAKANA:
+      if (isAlphabet(pcode)) {
+        mOutput.setComposingText(mComposing, 1);
+      } else {
+        mOutput.commitText(mComposing, 1);
+        mComposing.setLength(0);
+      }
+
+      updateCandidates();
+      break;
+    case KANJI:
+    case OKURIGANA:
+      String str = "" + mKanji + mComposing;
+      mOutput.setComposingText(str, 1);
+      updateCandidates();
+      break;
+    default:
+      mOutput.commitText(mComposing, 1);
+      mComposing.setLength(0);
+      break;
+    }
+  }
+
+  /**
+   * ALPHABETかZENKAKUならひらがな入力に戻してtrueを返す
+   */
+  public boolean leaveAlphabetMode() {
+    if (mInputMode != ALPHABET && mInputMode != ZENKAKU) return false;
+    mInputMode = HIRAKANA;
+    commitTyped();
+    return true;
+  }
+
+  public void choosePrevious() {
+    if (mSuggestions == null) return;
+    String cad;
+    mChoosedIndex--;
+    if (mChoosedIndex < 0) {
+      // 本当に最後の候補に回るよう、取り出していない候補を全て取り出す
+      while (loadMoreSuggestions()) {
+      }
+      mChoosedIndex = mSuggestions.size() - 1;
+    }
+    mOutput.chooseCandidate(mChoosedIndex);
+    cad = mSuggestions.get(mChoosedIndex);
+    if (isOkurigana) cad = cad.concat(mOkurigana);
+    mOutput.setComposingText(cad, 1);
+  }
+
+  public void chooseNext() {
+    if (mSuggestions == null) return;
+    mChoosedIndex++;
+    if (mChoosedIndex >= mSuggestions.size() && !loadMoreSuggestions()) mChoosedIndex = 0;
+    mOutput.chooseCandidate(mChoosedIndex);
+    String cad = mSuggestions.get(mChoosedIndex);
+    if (isOkurigana) cad = cad.concat(mOkurigana);
+    mOutput.setComposingText(cad, 1);
+  }
+
+  // 取り出していない候補が残っていれば次のページを取り出す
+  private boolean loadMoreSuggestions() {
+    return mSuggestions instanceof PagedCandidateList
+        && ((PagedCandidateList) mSuggestions).loadMore(PagedCandidateList.PAGE_SIZE) > 0;
+  }
+
+  private void handleSeparator(int pcode, StringBuilder composing) {
+    String str = composing.toString();
+    if (str.length() > 0) {
+      List<String> list = findKanji(str);
+      if (list == null) {
+        if (canRegister()) startRegister(str, null);
+        return;
+      }
+
+      mChoosedIndex = 0;
+      mInputMode = CHOOSE;
+      mLookupKey = str;
+      mOutput.setComposingText(list.get(0), 1);
+      setSuggestions(list, false, true);
+
+      return;
+    }
+
+    // Handle separator
+    mComposing.append((char) pcode);
+    commitTyped();
+  }
+
+  // 辞書の読み込みが終わっていて、登録先のユーザー辞書がある。登録の中で更に登録はしない
+  private boolean canRegister() {
+    return mRegisterKey == null && mDictionaryLoader.isDone()
+        && mDictionaryLoader.getUserDictionary() != null;
+  }
+
+  /**
+   * keyの辞書登録を始める。今の状態は取り消した時のために取っておく
+   *
+   * @param okuri 送りありの読みなら送り仮名の子音
+   */
+  private void startRegister(String key, String okuri) {
+    mRegisterKey = key;
+    mRegisterOkuri = okuri;
+    mRegisterMode = mInputMode;
+    mRegisterKanji = mKanji.toString();
+    mRegisterComposing = mComposing.toString();
+    mRegisterWord.setLength(0);
+    mRegisterPending = "";
+
+    mComposing.setLength(0);
+    mKanji.setLength(0);
+    isOkurigana = false;
+    mOkurigana = null;
+    mInputMode = HIRAKANA;
+    mOutput = mRegisterOutput;
+    showRegister();
+    setSuggestions(null, false, false);
+  }
+
+  // 登録をやめて出力先をエディタに戻す。入力中の状態はそのまま
+  private void endRegister() {
+    mRegisterKey = null;
+    mRegisterOkuri = null;
+    mOutput = mEditorOutput;
+  }
+
+  // "[読み]単語"の形でエディタに表示する
+  private void showRegister() {
+    mEditorOutput.setComposingText("[" + mRegisterKey + "]" + mRegisterWord + mRegisterPending, 1);
+  }
+
+  // 入力した単語をユーザー辞書に登録して確定する。単語が空なら取り消す
+  private void finishRegister() {
+    if (mRegisterWord.length() == 0) {
+      cancelRegister();
+      return;
+    }
+    String key = mRegisterKey;
+    String okuri = mRegisterOkuri;
+    String word = mRegisterWord.toString();
+    endRegister();
+
+    UserDictionary user = mDictionaryLoader.getUserDictionary();
+    if (user != null) {
+      user.learn(key, word);
+      mCandidateCache.invalidate(key);
+    }
+    mOutput.commitText(word, 1);
+
+    mComposing.setLength(0);
+    mKanji.setLength(0);
+    mInputMode = HIRAKANA;
+    if (okuri != null) {
+      // 送り仮名の続きはひらがなとして入力する
+      String kana = appendRomaji(okuri.charAt(0));
+      if (kana != null) mOutput.commitText(kana, 1);
+    }
+    mOutput.setComposingText(mComposing, 1);
+    updateCandidates();
+  }
+
+  // 登録を始める前の変換前の状態に戻す
+  private void cancelRegister() {
+    InputMode mode = mRegisterMode;
+    String kanji = mRegisterKanji;
+    String composing = mRegisterComposing;
+    endRegister();
+
+    mInputMode = mode;
+    isOkurigana = false;
+    mOkurigana = null;
+    mKanji.setLength(0);
+    mKanji.append(kanji);
+    mComposing.setLength(0);
+    mComposing.append(composing);
+    mOutput.setComposingText(kanji + composing, 1);
+    setSuggestions(null, false, false);
+  }
+
+  // 辞書登録中の出力先。確定した文字は単語に足し、Enterで登録、単語が空の時のDELで取り消す
+  private final Output mRegisterOutput = new Output() {
+    public void commitText(CharSequence text, int newCursorPosition) {
+      mRegisterWord.append(text);
+      mRegisterPending = "";
+      showRegister();
+    }
+
+    public void setComposingText(CharSequence text, int newCursorPosition) {
+      mRegisterPending = text.toString();
+      showRegister();
+    }
+
+    public void sendEnter() {
+      finishRegister();
+    }
+
+    public void sendBackspace() {
+      int len = mRegisterWord.length();
+      if (len == 0) {
+        cancelRegister();
+        return;
+      }
+      mRegisterWord.setLength(len - 1);
+      showRegister();
+    }
+
+    public void showCandidates(List<String> candidates, boolean completions, boolean typedWordValid) {
+      mEditorOutput.showCandidates(candidates, completions, typedWordValid);
+    }
+
+    public void chooseCandidate(int index) {
+      mEditorOutput.chooseCandidate(index);
+    }
+  };
+
+  // ひらがなでは以下の文字だけ全角になる。自分の趣味で決定してます。適当に修正してください。
+  private int changeSeparator2Zenkaku(int pcode) {
+    char c;
+    switch (pcode) {
+    case '.':
+      c = '。';
+      break;
+    case ',':
+      c = '、';
+      break;
+    case '-':
+      c = 'ー';
+      break;
+    case '!':
+      c = '！';
+      break;
+    case '?':
+      c = '？';
+      break;
+    case '~':
+      c = '～';
+      break;
+    default:
+      c = (char) pcode;
+    }
+    return (int) c;
+  }
+
+  /**
+   * 入力中のローマ字や英単語をそのまま確定する
+   */
+  public void commitTyped() {
+    if (mComposing.length() > 0) {
+      mOutput.commitText(mComposing, 1);
+      mComposing.setLength(0);
+      updateCandidates();
+    }
+  }
+
+  /**
+   * Helper to determine if a given character code is alphabetic.
+   */
+  static public boolean isAlphabet(int code) {
+    return ((code >= 0x41 && code <= 0x5A) || (code >= 0x61 && code <= 0x7A)) ? true : false;
+  }
+
+  public boolean isWordSeparator(int code) {
+    return mWordSeparators.indexOf((char) code) >= 0;
+  }
+
+  // 候補は辞書作成時に分割済み。注釈は候補に含まれない
+  private List<String> findKanji(String key) {
+    List<String> list = mCandidateCache.get(key);
+    if (list != null) return list;
+
+    // 辞書の読み込み中なら少しだけ待つ
+    SKKDictionary dic = mDictionaryLoader.await(DICTIONARY_WAIT);
+    if (dic == null) return null;
+
+    long start = KeyLatencyTracer.ENABLED ? System.nanoTime() : 0;
+    list = dic.findCandidates(key);
+    if (KeyLatencyTracer.ENABLED) KeyLatencyTracer.record(KeyLatencyTracer.LOOKUP, start);
+    if (list == null) return null;
+
+    mCandidateCache.put(key, list);
+    return list;
+  }
+
+  // 確定した候補をユーザー辞書に記録し、次の変換で先頭に出す
+  private void learn(String word) {
+    String key = mLookupKey;
+    mLookupKey = null;
+    UserDictionary user = mDictionaryLoader.getUserDictionary();
+    if (key == null || user == null) return;
+    user.learn(key, word);
+    mCandidateCache.invalidate(key);
+  }
+
+  // ローマ字をpcodeの分だけ進める。かなが確定すればそれを返し、mComposingには
+  // 続きのローマ字が残る。確定しなければnullを返し、pcodeはmComposingに積まれる。
+  // 続かなくなった場合、"n"のようにそのままかなにできるものはかなにし、
+  // できないものは捨ててpcodeから始め直す。ローマ字に使わない文字はそのまま積む
+  private String appendRomaji(int pcode) {
+    RomajiTable t = mRomajiTable;
+    int state = t.walk(mComposing);
+    int next = t.next(state, pcode);
+    String kana = null;
+    if (next == RomajiTable.NONE) {
+      kana = kana(state);
+      mComposing.setLength(0);
+      next = t.next(RomajiTable.ROOT, pcode);
+      if (next == RomajiTable.NONE) {
+        mComposing.append((char) pcode);
+        return kana;
+      }
+    }
+
+    if (t.hasNext(next)) {
+      mComposing.append((char) pcode);
+      return kana;
+    }
+    mComposing.setLength(0);
+    mComposing.append(t.getRest(next));
+    return (kana == null) ? kana(next) : kana.concat(kana(next));
+  }
+
+  // KATAKANAなら変換表に用意してあるカタカナを使う
+  private String kana(int state) {
+    return (mInputMode == KATAKANA) ? mRomajiTable.getKatakana(state) : mRomajiTable.getKana(state);
+  }
+
+  /**
+   * キーボードの文字列キーなどからまとめて入力された文字列
+   */
+  public void onText(CharSequence text) {
+    if ((mInputMode == HIRAKANA || mInputMode == KATAKANA) && isRomaji(text)) {
+      // 入力中のローマ字に続けてまとめてかなにし、最後の未確定のローマ字は入力中のまま残す
+      mRomajiConverter.setKatakana(mInputMode == KATAKANA);
+      mKanaBuffer.setLength(0);
+      mRomajiConverter.convert(mComposing, mKanaBuffer);
+      mRomajiConverter.convert(text, mKanaBuffer);
+      if (mKanaBuffer.length() > 0) mOutput.commitText(mKanaBuffer, 1);
+      mComposing.setLength(0);
+      mComposing.append(mRomajiConverter.getPending());
+      mRomajiConverter.reset();
+      mOutput.setComposingText(mComposing, 1);
+      updateCandidates();
+    } else {
+      commitTyped();
+      mOutput.commitText(text, 0);
+    }
+  }
+
+  // 英小文字だけならローマ字とみなす。".com"や顔文字はそのまま入力する
+  private static boolean isRomaji(CharSequence text) {
+    int len = text.length();
+    if (len == 0) return false;
+    for (int i = 0; i < len; i++) {
+      char c = text.charAt(i);
+      if (c < 'a' || c > 'z') return false;
+    }
+    return true;
+  }
+
+  /**
+   * Update the list of available candidates from the current composing text.
+   */
+  private void updateCandidates() {
+    mChoosedIndex = 0;
+    int clen = mComposing.length();
+    int klen = mKanji.length();
+
+    if (clen == 0 && klen == 0) {
+      showCandidatesLater(null, null);
+      return;
+    }
+
+    String str = mComposing.toString();
+    String head = str;
+    String key = null; // 補完候補を探す読み
+    ArrayList<String> list = new ArrayList<String>();
+
+    switch (mInputMode) {
+    case ENG2JAP:
+      key = str;
+      break;
+    case KANJI:
+      if (clen == 0) {
+        str = mKanji.toString();
+        head = str;
+      } else {
+        // ローマ字入力中はとりあえずア行に借り決めして検索。こうしないと英単語が出て使えない
+        String tmp = mRomajiTable.getKana(mRomajiTable.next(mRomajiTable.walk(mComposing), 'a'));
+        if (tmp != null) str = tmp;
+        str = mKanji.toString().concat(str);
+      }
+      key = str;
+      break;
+    default:
+      break;
+    }
+    list.add(head);
+    showCandidatesLater(list, key);
+  }
+
+  // 入力中の文字列(list)とkeyの補完候補を表示する。速く打っている間は途中の状態の候補を
+  // 検索も描画もせず、CANDIDATE_DELAYの間キーが来なかった時の最後の状態だけを表示する。
+  // 入力中の文字列そのもののエディタへの表示は呼び出し側ですぐに行う
+  private void showCandidatesLater(final ArrayList<String> list, final String key) {
+    if (mLookupWorker == null) {
+      // 同期モードではその場で検索して表示する
+      if (key != null) findKeys(key, list);
+      setSuggestions(list, false, list == null);
+      return;
+    }
+
+    // 検索中や表示待ちの候補はもう要らない
+    final int generation = ++mCandidateGeneration;
+    mLookupWorker.submit(new LookupWorker.Task(generation) {
+      @Override
+      protected void run() {
+        if (key != null) findKeys(key, list);
+        if (mLookupWorker.isStale(generation)) return;
+
+        mMainThread.execute(new Runnable() {
+          public void run() {
+            // 表示するまでの間に次のキーが来ていたら捨てる
+            if (generation == mCandidateGeneration) showSuggestions(list, false, list == null);
+          }
+        });
+      }
+    }, CANDIDATE_DELAY);
+  }
+
+  // ワーカースレッドから呼ばれる。入力中の状態には触らないこと
+  // 補完は辞書の補完索引を引くだけなので、読みを順に辿ることはない
+  private void findKeys(String key, ArrayList<String> list) {
+    // 補完候補は辞書の読み込みを待ってまで出さない
+    SKKDictionary dic = mDictionaryLoader.get();
+    if (dic == null) return;
+
+    long start = KeyLatencyTracer.ENABLED ? System.nanoTime() : 0;
+    for (SKKDictionary.Completion c : dic.complete(key, COMPLETION_SIZE)) {
+      list.add(c.key);
+    }
+    if (KeyLatencyTracer.ENABLED) KeyLatencyTracer.record(KeyLatencyTracer.LOOKUP, start);
+  }
+
+  /**
+   * 候補を表示する。選択中の候補は先頭に戻す
+   */
+  public void setSuggestions(List<String> suggestions,
+      boolean completions, boolean typedWordValid) {
+    // 検索中の補完候補はもう要らない
+    ++mCandidateGeneration;
+    if (mLookupWorker != null) mLookupWorker.invalidate(mCandidateGeneration);
+    showSuggestions(suggestions, completions, typedWordValid);
+  }
+
+  private void showSuggestions(List<String> suggestions,
+      boolean completions, boolean typedWordValid) {
+    if (suggestions != null && suggestions.size() > 0) {
+      mSuggestions = suggestions;
+    }
+    mOutput.showCandidates(suggestions, completions, typedWordValid);
+  }
+
+  public void handleBackspace() {
+    int clen = mComposing.length();
+    int klen = mKanji.length();
+
+    if (clen > 1) {
+      mComposing.delete(clen - 1, clen);
+      mOutput.setComposingText(mComposing, 1);
+
+    } else if (clen == 1) {
+      mComposing.setLength(0);
+      if (klen > 0) {
+        mOutput.setComposingText(mKanji, 1);
+      } else
+        mOutput.commitText("", 0);
+
+    } else { // length == 0
+      if (klen > 0) mKanji.delete(klen - 1, klen);
+      mOutput.setComposingText(mKanji, 1);
+      if (klen == 0) mOutput.sendBackspace();
+    }
+    if (mSuggestions != null) mSuggestions = new ArrayList<String>();
+    updateCandidates();
+    // 削除後の長さで更新
+    clen = mComposing.length();
+    klen = mKanji.length();
+    switch (mInputMode) {
+    case CHOOSE:
+      if (klen == 0) {
+        mInputMode = (clen > 0) ? ENG2JAP : HIRAKANA;
+      } else {
+        mInputMode = KANJI;
+      }
+      isOkurigana = false;
+      mOkurigana = null;
+      break;
+    case OKURIGANA:
+      if (clen == 0) {
+        isOkurigana = false;
+        mOkurigana = null;
+        mInputMode = KANJI;
+      }
+      break;
+    case KANJI:
+      if (klen == 0 && clen == 0) mInputMode = HIRAKANA;
+      break;
+    case ENG2JAP:
+      if (clen == 0) mInputMode = HIRAKANA;
+      break;
+    }
+  }
+
+  private void handleEnglish(int prime) {
+    mComposing.append((char) prime);
+    mOutput.setComposingText(mComposing, 1);
+    updateCandidates();
+  }
+
+  /**
+   * index番目の候補を確定する。送り仮名や英単語の変換中は次の段階に進む
+   */
+  public void pickSuggestion(int index) {
+    if (mSuggestions == null || mSuggestions.size() == 0) return;
+    String s = mSuggestions.get(index);
+
+    switch (mInputMode) {
+    case CHOOSE:
+      mOutput.commitText(s, 1);
+      if (isOkurigana) mOutput.commitText(mOkurigana, 1);
+      learn(s);
+
+      mComposing.setLength(0);
+      mKanji.setLength(0);
+      mInputMode = HIRAKANA;
+      isOkurigana = false;
+      mOkurigana = null;
+      updateCandidates();
+      break;
+    case ENG2JAP:
+      mOutput.setComposingText(s, 1);
+      mComposing.setLength(0);
+      mComposing.append(s);
+      List<String> list = findKanji(s);
+      setSuggestions(list, false, true);
+      mLookupKey = s;
+      mInputMode = CHOOSE;
+      break;
+    case KANJI:
+      mOutput.setComposingText(s, 1);
+      int li = s.length() - 1;
+      int last = s.codePointAt(li);
+      if (isAlphabet(last)) {
+        mKanji.setLength(0);
+        mKanji.append(s.substring(0, li));
+        mComposing.setLength(0);
+        onKey(Character.toUpperCase(last), false);
+      } else {
+        mKanji.setLength(0);
+        mKanji.append(s);
+        mComposing.setLength(0);
+        list = findKanji(s);
+        setSuggestions(list, false, true);
+        mLookupKey = s;
+        mInputMode = CHOOSE;
+      }
+      break;
+    }
+  }
+
+  public void dump(PrintWriter out) {
+    out.println("SkkEngine: mode " + mInputMode + ", composing \"" + mComposing + "\", kanji \"" + mKanji + "\"");
+    if (mRegisterKey != null) out.println("  registering \"" + mRegisterKey + "\": \"" + mRegisterWord + "\"");
+    out.println(mCandidateCache);
+    out.println(mDictionaryLoader.isDone() ? mDictionaryLoader.get() : "Dictionary: loading");
+  }
+}
@@ -25,6 +25,7 @@ import android.inputmethodservice.InputMethodService;
 import android.inputmethodservice.Keyboard;
 import android.inputmethodservice.KeyboardView;
 import android.media.AudioManager;
+import android.os.Handler;
 import android.text.TextUtils;
 import android.text.method.MetaKeyKeyListener;
 import android.util.Log;
@@ -37,17 +38,13 @@ import static android.view.inputmethod.EditorInfo.*;
 import android.view.inputmethod.InputConnection;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Properties;
-
-import jdbm.RecordManager;
-import jdbm.RecordManagerFactory;
-import jdbm.btree.BTree;
-import jdbm.helper.StringComparator;
-import jdbm.helper.Tuple;
-import jdbm.helper.TupleBrowser;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import static minghai.skk.InputMode.*;
 
@@ -71,17 +68,21 @@ public class SoftKeyboard extends InputMethodService implements
    * to be used for on-screen text entry.
    */
   static final boolean PROCESS_HARD_KEYS = true;
-  static final String DICTIONARY = "/sdcard/skk_dict_btree";
-  static final String BTREE_NAME = "skk_dict";
+  static final String DICTIONARY = "/sdcard/skk_dict.bin";
+  // 追加辞書(*.bin)を置くディレクトリ。システム辞書の下にファイル名の順で重ねる
+  static final String ADDON_DICTIONARY_DIR = "/sdcard/skk_addon";
+  // 学習結果と登録した単語。全ての辞書より優先する
+  static final String USER_DICTIONARY = "/sdcard/skk_user_dict.txt";
+  // AZIKなどのローマ字の規則。標準の規則に足される
+  static final String ROMAJI_RULES = "/sdcard/skk_romaji.txt";
+  // 規則を読み込んで作った変換表のキャッシュ(getCacheDir()内)
+  static final String ROMAJI_CACHE = "romaji.tbl";
 
   private LatinKeyboardView mInputView;
   private CandidateViewContainer mCandidateViewContainer;
   private CandidateView mCandidateView;
   private CompletionInfo[] mCompletions;
-  private ArrayList<String> mSuggestions;
 
-  private StringBuilder mComposing = new StringBuilder();
-  private StringBuilder mKanji = new StringBuilder();
   private boolean mPredictionOn;
   private boolean mCompletionOn;
   private int mLastDisplayWidth;
@@ -89,8 +90,6 @@ public class SoftKeyboard extends InputMethodService implements
   private long mLastShiftTime;
   private long mMetaState;
 
-  public int mChoosedIndex;
-
   private KeyboardSwitcher mKeyboardSwitcher;
 
   private LatinKeyboard mCurKeyboard;
@@ -99,58 +98,12 @@ public class SoftKeyboard extends InputMethodService implements
   private final float FX_VOLUME = 1.0f;
   private boolean mSilentMode;
 
-  private String mWordSeparators;
-
-  private InputMode mInputMode = HIRAKANA;
-  private boolean isOkurigana = false;
-  private String mOkurigana = null;
-  private ArrayList<String> mCandidateList;
-  
-  private BTree mBTree;
-
-  // ローマ字辞書
-  private HashMap<String, String> mRomajiMap = new HashMap<String, String>();
-	{
-		HashMap<String, String> m = mRomajiMap;
-		m.put("a", "あ");m.put("i", "い");m.put("u", "う");m.put("e", "え");m.put("o", "お");
-		m.put("ka", "か");m.put("ki", "き");m.put("ku", "く");m.put("ke", "け");m.put("ko", "こ");
-		m.put("sa", "さ");m.put("si", "し");m.put("su", "す");m.put("se", "せ");m.put("so", "そ");
-		m.put("ta", "た");m.put("ti", "ち");m.put("tu", "つ");m.put("te", "て");m.put("to", "と");
-		m.put("na", "な");m.put("ni", "に");m.put("nu", "ぬ");m.put("ne", "ね");m.put("no", "の");
-		m.put("ha", "は");m.put("hi", "ひ");m.put("hu", "ふ");m.put("he", "へ");m.put("ho", "ほ");
-		m.put("ma", "ま");m.put("mi", "み");m.put("mu", "む");m.put("me", "め");m.put("mo", "も");
-		m.put("ya", "や");                 m.put("yu", "ゆ");                  m.put("yo", "よ");
-		m.put("ra", "ら");m.put("ri", "り");m.put("ru", "る");m.put("re", "れ");m.put("ro", "ろ");
-		m.put("wa", "わ");m.put("wi", "うぃ");m.put("we", "うぇ");m.put("wo", "を");m.put("nn", "ん");
-		m.put("ga", "が");m.put("gi", "ぎ");m.put("gu", "ぐ");m.put("ge", "げ");m.put("go", "ご");
-		m.put("za", "ざ");m.put("zi", "じ");m.put("zu", "ず");m.put("ze", "ぜ");m.put("zo", "ぞ");
-		m.put("da", "だ");m.put("di", "ぢ");m.put("du", "づ");m.put("de", "で");m.put("do", "ど");
-		m.put("ba", "ば");m.put("bi", "び");m.put("bu", "ぶ");m.put("be", "べ");m.put("bo", "ぼ");
-		m.put("pa", "ぱ");m.put("pi", "ぴ");m.put("pu", "ぷ");m.put("pe", "ぺ");m.put("po", "ぽ");
-		m.put("va", "う゛ぁ");m.put("vi", "う゛ぃ");m.put("vu", "う゛");m.put("ve", "う゛ぇ");m.put("vo", "う゛ぉ");
-
-		m.put("xa", "ぁ");m.put("xi", "ぃ");m.put("xu", "ぅ");m.put("xe", "ぇ");m.put("xo", "ぉ");
-		m.put("xtu", "っ");m.put("xke", "ヶ");
-		m.put("cha", "ちゃ");m.put("chi", "ち");m.put("chu", "ちゅ");m.put("che", "ちぇ");m.put("cho", "ちょ");
-		m.put("fa", "ふぁ");m.put("fi", "ふぃ");m.put("fu", "ふぅ");m.put("fe", "ふぇ");m.put("fo", "ふぉ");
-
-		m.put("xya", "ゃ");                m.put("xyu", "ゅ");              m.put("xyo", "ょ");
-		m.put("kya", "きゃ");              m.put("kyu", "きゅ");             m.put("kyo", "きょ");
-		m.put("gya", "ぎゃ");              m.put("gyu", "ぎゅ");             m.put("gyo", "ぎょ");
-		m.put("sya", "しゃ");              m.put("syu", "しゅ");             m.put("syo", "しょ");
-		m.put("sha", "しゃ");m.put("shi", "し");m.put("shu", "しゅ");m.put("she", "しぇ");m.put("sho", "しょ");
-		m.put("ja",  "じゃ");m.put("ji",  "じ");m.put("ju", "じゅ");m.put("je", "じぇ");m.put("jo", "じょ");
-		m.put("cha", "ちゃ");m.put("chi", "ち");m.put("chu", "ちゅ");m.put("che", "ちぇ");m.put("cho", "ちょ");
-		m.put("tya", "ちゃ");              m.put("tyu", "ちゅ");m.put("tye", "ちぇ");m.put("tyo", "ちょ");
-		m.put("dha", "でゃ");m.put("dhi", "でぃ");m.put("dhu", "でゅ");m.put("dhe", "でぇ");m.put("dho", "でょ");
-		m.put("dya", "ぢゃ");m.put("dyi", "ぢぃ");m.put("dyu", "ぢゅ");m.put("dye", "ぢぇ");m.put("dyo", "ぢょ");
-		m.put("nya", "にゃ");              m.put("nyu", "にゅ");             m.put("nyo", "にょ");
-		m.put("hya", "ひゃ");              m.put("hyu", "ひゅ");             m.put("hyo", "ひょ");
-		m.put("pya", "ぴゃ");              m.put("pyu", "ぴゅ");             m.put("pyo", "ぴょ");
-		m.put("bya", "びゃ");              m.put("byu", "びゅ");             m.put("byo", "びょ");
-    m.put("mya", "みゃ");              m.put("myu", "みゅ");             m.put("myo", "みょ");
-    m.put("rya", "りゃ");              m.put("ryu", "りゅ");m.put("rye", "りぇ");m.put("ryo", "りょ");   
-	}
+  private DictionaryLoader mDictionaryLoader;
+  private Handler mHandler = new Handler();
+  // 変換の状態と処理。ここではキー入力とInputConnection、候補の表示をつなぐだけ
+  private SkkEngine mEngine;
+  // 1回のキー入力の間のエディタへの出力をまとめて送る
+  private final InputConnectionBatcher mBatcher = new InputConnectionBatcher();
     
     /**
    * Main initialization of the input method component. Be sure to call to super
@@ -160,44 +113,64 @@ public class SoftKeyboard extends InputMethodService implements
   public void onCreate() {
     super.onCreate();
     mKeyboardSwitcher = new KeyboardSwitcher(this);
-    mWordSeparators = getResources().getString(R.string.word_separators);
+
+    // 前回と同じ規則ならキャッシュした変換表を読むだけで済む
+    RomajiTable romajiTable;
+    try {
+      romajiTable = RomajiTable.load(new File(ROMAJI_RULES), new File(getCacheDir(), ROMAJI_CACHE));
+    } catch (IOException e) {
+      Log.e("TEST", "Romaji rules not loaded: " + e);
+      Toast.makeText(this, "Romaji rules not loaded: " + ROMAJI_RULES, Toast.LENGTH_SHORT).show();
+      romajiTable = RomajiTable.createDefault();
+    }
     
     // register to receive ringer mode changes for silent mode
     IntentFilter filter = new IntentFilter(AudioManager.RINGER_MODE_CHANGED_ACTION);
     registerReceiver(mReceiver, filter);
     
     // Open Dictionary
-    RecordManager recman;
-    long          recid;
-    Properties    props;
-
-    props = new Properties();
-    try {
-      recman = RecordManagerFactory.createRecordManager( DICTIONARY, props );
-
-      // try to reload an existing B+Tree
-      recid = recman.getNamedObject( BTREE_NAME );
-      if (recid == 0) {
-        Log.d("TEST", "Dictionary not found: " + DICTIONARY);
+    // 起動を待たせないよう別スレッドで開く。開き終わるまでは変換できないがかな入力はできる
+    mDictionaryLoader = new DictionaryLoader(DICTIONARY, new File(ADDON_DICTIONARY_DIR), USER_DICTIONARY,
+        new DictionaryLoader.Listener() {
+      public void onDictionaryError(final String path, IOException e) {
+        Log.e("TEST", e.toString());
+        mHandler.post(new Runnable() {
+          public void run() {
+            Toast.makeText(SoftKeyboard.this, "Dictionary not found/loaded: " + path,
+                Toast.LENGTH_SHORT).show();
+          }
+        });
       }
+    });
+    mDictionaryLoader.start();
 
-      mBTree = BTree.load( recman, recid );
-    
-    } catch (IOException e) {
-      Log.e("TEST", e.toString());
-      Toast t = new Toast(this);
-      t.setDuration(Toast.LENGTH_SHORT);
-      t.setText("Dictionary not found/loaded: " + DICTIONARY);
-      t.show();
-    }
+    mEngine = new SkkEngine(romajiTable, getResources().getString(R.string.word_separators),
+        mDictionaryLoader, mOutput, new Executor() {
+      public void execute(Runnable r) {
+        mHandler.post(r);
+      }
+    });
   }
   
   @Override public void onDestroy() {
       // mUserDictionary.close();
+      mEngine.close();
+      mDictionaryLoader.close();
       unregisterReceiver(mReceiver);
       super.onDestroy();
   }
 
+  @Override
+  public void onLowMemory() {
+    super.onLowMemory();
+    if (mCandidateView != null) mCandidateView.trimMemory();
+  }
+
+  // API 14以降で呼ばれる。それより前の端末ではonLowMemory()だけ
+  public void onTrimMemory(int level) {
+    if (mCandidateView != null) mCandidateView.trimMemory();
+  }
+
   @Override
   public void onConfigurationChanged(Configuration conf) {
     /*
@@ -238,6 +211,7 @@ public class SoftKeyboard extends InputMethodService implements
     mCandidateViewContainer = (CandidateViewContainer) getLayoutInflater().inflate(
         R.layout.candidates, null);
     mCandidateViewContainer.initViews();
+    mCandidateViewContainer.setService(this);
     mCandidateView = (CandidateView) mCandidateViewContainer.findViewById(R.id.candidates);
     mCandidateView.setService(this);
     return mCandidateViewContainer;
@@ -267,12 +241,9 @@ public class SoftKeyboard extends InputMethodService implements
 
     // Reset our state. We want to do this even if restarting, because
     // the underlying state of the text editor could have changed in any way.
-    mComposing.setLength(0);
-    mKanji.setLength(0);
-    mCandidateList = null;
-    isOkurigana = false;
+    mBatcher.reset();
+    mEngine.reset();
     mCapsLock = false;
-    updateCandidates();
 
     if (!restarting) {
       // Clear shift states.
@@ -282,7 +253,7 @@ public class SoftKeyboard extends InputMethodService implements
     mPredictionOn = false;
     mCompletionOn = false;
     mCompletions = null;
-    mInputMode = ALPHABET;
+    InputMode mode = ALPHABET;
 
     // We are now going to initialize our state based on the type of
     // text being edited.
@@ -315,7 +286,7 @@ public class SoftKeyboard extends InputMethodService implements
       // user types).
       mKeyboardSwitcher.setKeyboardMode(KeyboardSwitcher.MODE_TEXT,
           attribute.imeOptions);
-      mInputMode = HIRAKANA;
+      mode = HIRAKANA;
       mPredictionOn = true;
 
       // Make sure that passwords are not displayed in candidate view
@@ -324,33 +295,33 @@ public class SoftKeyboard extends InputMethodService implements
       case TYPE_TEXT_VARIATION_PASSWORD:
       case TYPE_TEXT_VARIATION_VISIBLE_PASSWORD:
         mPredictionOn = false;
-        mInputMode = ALPHABET;
+        mode = ALPHABET;
         break;
       case TYPE_TEXT_VARIATION_EMAIL_ADDRESS:
         mPredictionOn = false;
         mKeyboardSwitcher.setKeyboardMode(KeyboardSwitcher.MODE_EMAIL,
                 attribute.imeOptions);
-        mInputMode = ALPHABET;
+        mode = ALPHABET;
         break;
       case TYPE_TEXT_VARIATION_PERSON_NAME:
         mPredictionOn = true;
-        mInputMode = HIRAKANA;
+        mode = HIRAKANA;
         break;
       case TYPE_TEXT_VARIATION_URI:
         mPredictionOn = true;
         mKeyboardSwitcher.setKeyboardMode(KeyboardSwitcher.MODE_URL,
                 attribute.imeOptions);
-        mInputMode = ALPHABET;
+        mode = ALPHABET;
         break;
       case TYPE_TEXT_VARIATION_SHORT_MESSAGE:
         mKeyboardSwitcher.setKeyboardMode(KeyboardSwitcher.MODE_IM,
             attribute.imeOptions);
         mPredictionOn = true;
-        mInputMode = HIRAKANA;
+        mode = HIRAKANA;
         break;
       case TYPE_TEXT_VARIATION_FILTER:
         mPredictionOn = false;
-        mInputMode = ALPHABET;
+        mode = ALPHABET;
         break;
       }
 
@@ -370,13 +341,15 @@ public class SoftKeyboard extends InputMethodService implements
       // keyboard with no special features.
       mKeyboardSwitcher.setKeyboardMode(KeyboardSwitcher.MODE_TEXT,
           attribute.imeOptions);
-      mInputMode = HIRAKANA;
+      mode = HIRAKANA;
       updateShiftKeyState(attribute);
     }
+    mEngine.setInputMode(mode);
     Log.d("TEST", "onStartupInput: Result: mPredictionOn = " + mPredictionOn + " mCompletionOn = " + mCompletionOn);
 
     mInputView.closing();
     if (mCandidateView != null) mCandidateView.setSuggestions(null, false, false);
+    if (mCandidateViewContainer != null) mCandidateViewContainer.setExpanded(false);
   }
 
   /**
@@ -389,11 +362,8 @@ public class SoftKeyboard extends InputMethodService implements
     super.onFinishInput();
 
     // Clear current composing text and candidates.
-    mComposing.setLength(0);
-    mKanji.setLength(0);
-    mCandidateList = null;
-    isOkurigana = false;
-    updateCandidates();
+    mEngine.reset();
+    mBatcher.reset();
 
     // We only hide the candidates window when finishing input on
     // a particular editor, to avoid popping the underlying application
@@ -422,6 +392,9 @@ public class SoftKeyboard extends InputMethodService implements
     super.onUpdateSelection(oldSelStart, oldSelEnd, newSelStart, newSelEnd,
         candidatesStart, candidatesEnd);
 
+    // エディタ側で入力中の文字列が確定された
+    if (candidatesStart < 0) mBatcher.onComposingFinished();
+
     // If the current selection in the text view changes, we should
     // clear whatever candidate text we have.
     /*
@@ -444,7 +417,7 @@ public class SoftKeyboard extends InputMethodService implements
     if (mCompletionOn) {
       mCompletions = completions;
       if (completions == null) {
-        setSuggestions(null, false, false);
+        mEngine.setSuggestions(null, false, false);
         return;
       }
 
@@ -456,8 +429,7 @@ public class SoftKeyboard extends InputMethodService implements
           if (s != null) stringList.add(s.toString());
         }
       }
-      mChoosedIndex = 0;
-      setSuggestions(stringList, true, true);
+      mEngine.setSuggestions(stringList, true, true);
     }
   }
 
@@ -469,12 +441,6 @@ public class SoftKeyboard extends InputMethodService implements
     mMetaState = MetaKeyKeyListener.handleKeyDown(mMetaState, keyCode, event);
     int c = event.getUnicodeChar(MetaKeyKeyListener.getMetaState(mMetaState));
     mMetaState = MetaKeyKeyListener.adjustMetaAfterKeypress(mMetaState);
-    if ((mMetaState & MetaKeyKeyListener.META_ALT_ON) != 0) Log.d("TEST", "ALT is on");
-    if ((mMetaState & MetaKeyKeyListener.META_SHIFT_ON) != 0) Log.d("TEST", "SHIFT is on");
-    if ((mMetaState & MetaKeyKeyListener.META_SYM_ON) != 0) Log.d("TEST", "SYM is on");
-    if ((mMetaState & MetaKeyKeyListener.META_ALT_LOCKED) != 0) Log.d("TEST", "ALT is locked");
-    if ((mMetaState & MetaKeyKeyListener.META_CAP_LOCKED) != 0) Log.d("TEST", "SHIFT is locked");
-    if ((mMetaState & MetaKeyKeyListener.META_SYM_LOCKED) != 0) Log.d("TEST", "SYM is locked");
 
     InputConnection ic = getCurrentInputConnection();
     if (c == 0 || ic == null) {
@@ -511,14 +477,8 @@ public class SoftKeyboard extends InputMethodService implements
    */
   @Override
   public boolean onKeyDown(int keyCode, KeyEvent event) {
-    Log.d("TEST", "----BEGIN-------------------------------------------------------------------");
-    Log.d("TEST", "onKeyDown(): keyCode = " + keyCode + " mInputMode = " + mInputMode);
-    Log.d("TEST", "mComposing = " + mComposing + " mKanji = " + mKanji);
-
     if (mPredictionOn == false) return super.onKeyDown(keyCode, event);
     
-    InputConnection ic = getCurrentInputConnection();
-    
     switch (keyCode) {
     case KeyEvent.KEYCODE_BACK:
       // The InputMethodService already takes care of the back
@@ -536,12 +496,13 @@ public class SoftKeyboard extends InputMethodService implements
       // Special handling of the delete key: if we currently are
       // composing text for the user, we want to modify that instead
       // of let the application to the delete itself.
-      handleBackspace();
+      mBatcher.begin();
+      mEngine.handleBackspace();
+      mBatcher.end(getCurrentInputConnection());
       return true;
 
     case KeyEvent.KEYCODE_ENTER:
-      Log.d("TEST", "onKeyDown: KEYCODE_ENTER");
-      switch (mInputMode) {
+      switch (mEngine.getInputMode()) {
       case CHOOSE:
       case ENG2JAP:
       case KANJI:
@@ -554,10 +515,14 @@ public class SoftKeyboard extends InputMethodService implements
       }
       
     case KeyEvent.KEYCODE_DPAD_LEFT:     
-      choosePrevious(ic);
+      mBatcher.begin();
+      mEngine.choosePrevious();
+      mBatcher.end(getCurrentInputConnection());
       return true;
     case KeyEvent.KEYCODE_DPAD_RIGHT:
-      chooseNext(ic);
+      mBatcher.begin();
+      mEngine.chooseNext();
+      mBatcher.end(getCurrentInputConnection());
       return true;
     default:
       // For all other keys, if we want to do transformations on
@@ -567,352 +532,73 @@ public class SoftKeyboard extends InputMethodService implements
         return true;
       }
     }
-    Log.d("TEST", "traslateKeyDown: can't reach onKey() : mPredictionOn = " + mPredictionOn);
     return super.onKeyDown(keyCode, event);
   }
 
   // Implementation of KeyboardViewListener
   // This is software key listener
-  // ちょっとわかりづらいが、漢字モード(mInputMode == KANJI)とは漢字変換するためのひらがなを入力するモード
-  // 漢字にするひらがなが決定したときにモードは漢字選択モードのCHOOSEになる
   public void onKey(int pcode, int[] keyCodes) {
-    Log.d("TEST", "onKey():: " + pcode + "(" + (char) pcode + ") mComp = "
-        + mComposing + " mKanji = " + mKanji + " im = " + mInputMode + " isFullScreen() = " + isFullscreenMode());
-    EditorInfo ciei = getCurrentInputEditorInfo();
+    long start = KeyLatencyTracer.ENABLED ? System.nanoTime() : 0;
+    mBatcher.begin();
+    boolean updateShift = handleKey(pcode);
+    mBatcher.end(getCurrentInputConnection());
+    // 大文字にするかどうかはカーソルの前の文字で決まるので、確定した文字がエディタに届いてから見る
+    if (updateShift) updateShiftKeyState(getCurrentInputEditorInfo());
+    if (KeyLatencyTracer.ENABLED) KeyLatencyTracer.record(KeyLatencyTracer.KEY, start);
+  }
+
+  // キーボードに関わるキーだけここで処理し、文字の入力はSkkEngineに渡す。
+  // 出力をエディタに渡した後でシフトの状態を更新する必要があればtrueを返す
+  private boolean handleKey(int pcode) {
     InputConnection ic = getCurrentInputConnection();
+    boolean shifted = mInputView != null && mInputView.isShifted();
 
     // ハードキーはSHIFTとALPHABETが別のキー入力として入力される
     // ソフトキーは必ず小文字で入力されMetaステートとの結合が必要になる。
     // 共に事前に大文字にしてキーの検査を行い後にシフトを無視する場合小文字に戻す
-    if (isAlphabet(pcode) && mInputView != null && mInputView.isShifted()) {
+    boolean updateShift = false;
+    if (isAlphabet(pcode) && shifted) {
       pcode = Character.toUpperCase(pcode);
-      updateShiftKeyState(ciei);
+      // 英字キーボードのシフトはこの1文字で終わる。キーボードの表示はonKey()で戻す
+      if (mKeyboardSwitcher.isAlphabetMode()) shifted = mCapsLock;
+      updateShift = true;
     }
 
     // 特殊キーの処理
     switch (pcode) {
     case Keyboard.KEYCODE_DELETE:
-      handleBackspace();
-      return;
+      mEngine.handleBackspace();
+      return false;
     case Keyboard.KEYCODE_SHIFT:
       handleShift();
-      return;
+      return false;
     case LatinKeyboardView.KEYCODE_SHIFT_LONGPRESS:
       if (mCapsLock) {
           handleShift();
       } else {
           toggleCapsLock();
       }
-      updateShiftKeyState(ciei);
-      return;
+      return true;
     case LatinKeyboardView.KEYCODE_SLASH_LONGPRESS:
-      if (mInputMode == ALPHABET || mInputMode == ZENKAKU) 
-        mInputMode = HIRAKANA;
-      return;
+      mEngine.leaveAlphabetMode();
+      return false;
     case Keyboard.KEYCODE_CANCEL:
-      if (mInputMode == ALPHABET || mInputMode == ZENKAKU) {
-        mInputMode = HIRAKANA;
-        commitTyped(ic);
-        return;
-      }
+      if (mEngine.leaveAlphabetMode()) return false;
       handleClose();
-      return;
+      return false;
     case LatinKeyboardView.KEYCODE_OPTIONS:
       // Show a menu or somethin'
-      return;
+      return false;
     case Keyboard.KEYCODE_MODE_CHANGE:
       if (mInputView != null) {
         changeKeyboardMode();
       }
-      return;
-    case 0x0A: // Enter Key
-      switch (mInputMode) {
-      case CHOOSE:
-        pickSuggestionManually(mChoosedIndex);
-        break;
-      case ENG2JAP:
-        ic.commitText(mComposing, 1);
-        mComposing.setLength(0);
-        mInputMode = HIRAKANA;
-        updateCandidates();
-        break;
-      case KANJI:
-        ic.commitText(mKanji.append(mComposing), 1);
-        mComposing.setLength(0);
-        mKanji.setLength(0);
-        mInputMode = HIRAKANA;
-        break;
-      default:
-        ic.commitText(mKanji.append(mComposing), 1);
-        mComposing.setLength(0);
-        mKanji.setLength(0);
-        keyDownUp(KeyEvent.KEYCODE_ENTER);
-        break;
-      }
-      return;
-    case 'l':
-      if (mInputMode == HIRAKANA || mInputMode == KATAKANA) {
-        commitTyped(ic);
-        mInputMode = ALPHABET;
-        return;
-      }
-      break;
-    case 'L':
-      if (mInputMode != ALPHABET && mInputMode != ZENKAKU && mInputMode != ENG2JAP) {
-        commitTyped(ic);
-        mInputMode = ZENKAKU;
-        return;
-      }
-      break;
-    case 'q':
-      if (mInputMode == ALPHABET || mInputMode == ENG2JAP || mInputMode == ZENKAKU)
-        break;
-
-      switch (mInputMode) {
-      case HIRAKANA:
-        mInputMode = KATAKANA;
-        break;
-      case KATAKANA:
-        mInputMode = HIRAKANA;
-        break;
-      case KANJI:
-        mInputMode = HIRAKANA;
-        if (mKanji.length() > 0) {
-          String str = hirakana2katakana(mKanji.toString());
-          ic.commitText(str, 1);
-          mKanji.setLength(0);
-        }
-        break;
-      }
-
-      if (mComposing.length() > 0) commitTyped(ic);
-      return;
-    case '/':
-      if (mInputMode == HIRAKANA || mInputMode == KATAKANA) {
-        mInputMode = ENG2JAP;
-        return;
-      }
-      break;
-    }
-
-    // ALPHABETならcommitして終了
-    if (mInputMode == ALPHABET) {
-      ic.commitText(String.valueOf((char) pcode), 1);
-      return;
-    }
-
-    // Zenkakuなら全角変換しcommitして終了
-    if (mInputMode == ZENKAKU) {
-      pcode = hankaku2zenkaku(pcode);
-      ic.commitText(String.valueOf((char) pcode), 1);
-      return;
-    }
-    
-
-    // 英日変換なら区切り文字で確定するかそのままComposingに積む
-    if (mInputMode == ENG2JAP) {
-      if (isWordSeparator(pcode)) {
-        handleSeparator(pcode, mComposing);
-        return;
-      }
-
-      handleEnglish(pcode, keyCodes);
-      return;
-    }
-
-    if (mInputMode == CHOOSE) {
-      switch (pcode) {
-      case ' ':
-        chooseNext(ic);
-        return;
-      case 'x':
-        choosePrevious(ic);
-        if (mChoosedIndex == mSuggestions.size() - 1) {
-          if (mKanji.length() != 0) {
-            // Back to Kanji
-            if (isOkurigana) mKanji.append(mOkurigana);
-            ic.setComposingText(mKanji, 1);
-            mInputMode = KANJI;
-          } else {
-            ic.setComposingText(mComposing, 1);
-            mInputMode = ENG2JAP;
-          }
-          setSuggestions(null, false, false);
-        }
-        return;
-      case Keyboard.KEYCODE_DELETE:
-        handleBackspace();
-        updateCandidates();
-        //mInputMode = (mKanji.length() > 0) ? HIRAKANA : ENG2JAP;
-        return;
-      default:
-        pickSuggestionManually(mChoosedIndex);
-        mInputMode = HIRAKANA;
-        onKey(pcode, null);
-        return;
-      }
-    }
-
-    // 漢字モードで区切り文字の場合、変換開始
-    if (isWordSeparator(pcode) && mInputMode == KANJI) {
-      // 最後に単体の'n'で終わっている場合、'ん'に変換
-      if (mComposing.length() == 1 && mComposing.charAt(0) == 'n') {
-        mKanji.append('ん');
-        ic.setComposingText(mKanji, 1);
-      }
-
-      handleSeparator(pcode, mKanji);
-      return;
-    }
-
-    // シフトキーの処理
-    boolean isUpper = Character.isUpperCase(pcode);
-    if (isUpper) { // ローマ字変換のために小文字に戻す
-      pcode = Character.toLowerCase(pcode);
-    }
-    // シフトキーを離すのが面倒なのでOKURIGANA決定時に大文字の時にはシフト無効
-    if (mInputMode == OKURIGANA && isUpper) {
-      isUpper = false;
-    }
-
-    // ここでは既に漢字変換モードであるか平仮名片仮名の入力であるので一部の記号は全角にする
-    pcode = changeSeparator2Zenkaku(pcode);
-
-    // 'ん'と'っ'の処理
-    if (mComposing.length() == 1) {
-      char first = mComposing.charAt(0);
-      if (first == 'n') {
-        if (!isVowel(pcode) && pcode != 'n' && pcode != 'y') {
-          String str = "ん";
-          handleNN(ic, str);
-        }
-      } else if (first == pcode) {
-        String str = "っ";
-        handleNN(ic, str);
-      }
-    }
-
-    if ((mInputView != null && mInputView.isShifted()) || isUpper) {
-      // シフトキーが押されている状態：
-      // 漢字モードなら送り仮名開始であり変換を行なう。辞書のキーは漢字読み+送り仮名アルファベット1文字
-      // 最初の平仮名はついシフトキーを押しっぱなしにしてしまうため、mKanjiの長さをチェック
-      // mKanjiの長さが0の時はシフトが押されていなかったことにして下方へ継続させる
-      if (mKanji.length() > 0 && mInputMode == KANJI) {
-        mKanji.append((char) pcode); //辞書検索には送り仮名の子音文字が必要
-        ic.setComposingText(mKanji, 1);
-        ArrayList<String> cand = findKanji(mKanji.toString());
-        // dictionary
-        if (cand != null) {
-          isOkurigana = true;
-          mChoosedIndex = 0;
-          
-          mComposing.setLength(0);
-          mComposing.append((char) pcode);
-          mKanji.deleteCharAt(mKanji.length() - 1); // 送り仮名の子音文字を取り除く
-
-          // 「あいうえお」なら即送り仮名決定
-          if (isVowel(pcode)) {
-            String str = changeAlphabet2Romaji();
-
-            mKanji.append(str);
-            mOkurigana = str;
-            mInputMode = CHOOSE;
-            setSuggestions(cand, true, true);
-            ic.setComposingText(cand.get(0).concat(str), 1); // 変換候補の最初をEditorViewに表示
-          } else { // それ以外は送り仮名モード
-            mInputMode = OKURIGANA;
-            mCandidateList = cand;
-            updateCandidates();
-          }
-        } else {
-          // 変換失敗、辞書登録
-          ic.setComposingText(mKanji, 1);
-          mComposing.append((char) pcode);
-          mKanji.deleteCharAt(mKanji.length() - 1); // 送り仮名の子音文字を取り除く
-          mSuggestions.clear();
-          mSuggestions.add("IME：未登録");
-          setSuggestions(mSuggestions, false, false);
-        }
-
-        return;
-      } else if (mInputMode == HIRAKANA) {
-        // 平仮名なら漢字変換候補入力の開始。KANJIへの移行
-        
-        // ローマ字の途中で漢字変換に入った場合、途中までのアルファベットを掃き出す
-        if (mComposing.length() > 0) {
-          ic.commitText(mComposing, 1);
-          mComposing.setLength(0);
-        }
-        mInputMode = KANJI;
-        // ここでは表示のみ修正し下へ抜けさせる
-        ic.setComposingText(mComposing, 1);
-        updateCandidates();
-      }
-    }
-
-
-    String hchr; // ひらがな、1ローマ字単位分、"あ、い、う、、きゃ、き、きゅ、、"
-    if (pcode == 'ー') {
-      hchr = "ー";
-    } else {
-      mComposing.append((char) pcode);
-      hchr = changeAlphabet2Romaji(); // ローマ字からひらがなに変換
-    }
-    if (hchr != null) {
-      // Success
-      if (mInputMode == KATAKANA) {
-        hchr = hirakana2katakana(hchr);
-      }
-
-      mComposing.setLength(0);
-
-      if (mInputMode == KANJI) {
-        mKanji.append(hchr);
-        ic.setComposingText(mKanji, 1);
-      } else if (mInputMode == OKURIGANA) {
-        setSuggestions(mCandidateList, false, true);
-        mInputMode = CHOOSE;
-        mOkurigana = (mOkurigana == null) ? hchr : mOkurigana.concat(hchr);
-        if (mCandidateList != null)
-          ic.setComposingText(mCandidateList.get(mChoosedIndex).concat(mOkurigana), 1);
-        return;
-      } else {
-        ic.commitText(hchr, 1);
-      }
-
-      // sendKey(pcode);
-      updateCandidates();
-      return;
-    }
-
-    // 表示して終了:
-    // ここに来たならmInputModeに限らず未確定
-    switch (mInputMode) {
-    case HIRAKANA:
-    case KATAKANA:
-      if (isAlphabet(pcode)) {
-        ic.setComposingText(mComposing, 1);
-      } else {
-        ic.commitText(mComposing, 1);
-        mComposing.setLength(0);
-      }
-
-      updateCandidates();
-      break;
-    case KANJI:
-    case OKURIGANA:
-      String str = "" + mKanji + mComposing;
-      ic.setComposingText(str, 1);
-      updateCandidates();
-      break;
-    default:
-      ic.commitText(mComposing, 1);
-      mComposing.setLength(0);
-      break;
+      return false;
     }
 
-    Log.d("TEST", "End: mComposing = " + mComposing + " mKanji = " + mKanji + " mInputMode = " + mInputMode);
-    Log.d("TEST", "--------------------------------------------------------------------------------");
+    if (ic == null) return updateShift;
+    mEngine.onKey(pcode, shifted);
+    return true;
   }
 
   private void changeKeyboardMode() {
@@ -924,107 +610,6 @@ public class SoftKeyboard extends InputMethodService implements
     updateShiftKeyState(getCurrentInputEditorInfo());
   }
 
-  private void choosePrevious(InputConnection ic) {
-    if (mSuggestions == null) return;
-    String cad;
-    mChoosedIndex--;
-    if (mChoosedIndex < 0) mChoosedIndex = mSuggestions.size() - 1;
-    mCandidateView.choose(mChoosedIndex);
-    cad = mSuggestions.get(mChoosedIndex);
-    if (isOkurigana) cad = cad.concat(mOkurigana);
-    ic.setComposingText(cad, 1);
-    return;
-  }
-
-  private void chooseNext(InputConnection ic) {
-    if (mSuggestions == null) return;
-    mChoosedIndex++;
-    if (mChoosedIndex >= mSuggestions.size()) mChoosedIndex = 0;
-    mCandidateView.choose(mChoosedIndex);
-    String cad = mSuggestions.get(mChoosedIndex);
-    if (isOkurigana) cad = cad.concat(mOkurigana);
-    ic.setComposingText(cad, 1);
-    return;
-  }
-
-  private void handleSeparator(int pcode, StringBuilder composing) {
-    EditorInfo ciei = getCurrentInputEditorInfo();
-    InputConnection ic = getCurrentInputConnection();
-    String str = composing.toString();
-    if (str.length() > 0) {
-      ArrayList<String> list = findKanji(str);
-      if (list == null)
-        return; // FUTURE: REGISTER
-
-      mChoosedIndex = 0;
-      mInputMode = CHOOSE;
-      ic.setComposingText(list.get(0), 1);
-      setSuggestions(list, false, true);
-
-      return;
-    }
-
-    // Handle separator
-    mComposing.append((char) pcode);
-    commitTyped(ic);
-    // sendKey(pcode);
-    updateShiftKeyState(ciei);
-    return;
-  }
-
-  // 半角から全角 (UNICODE)
-  private int hankaku2zenkaku(int pcode) {
-    if (pcode == 0x20) // スペースだけ、特別
-      return 0x3000;
-    return pcode - 0x20 + 0xFF00;
-  }
-
-  // ひらがなでは以下の文字だけ全角になる。自分の趣味で決定してます。適当に修正してください。
-  private int changeSeparator2Zenkaku(int pcode) {
-    char c;
-    switch (pcode) {
-    case '.':
-      c = '。';
-      break;
-    case ',':
-      c = '、';
-      break;
-    case '-':
-      c = 'ー';
-      break;
-    case '!':
-      c = '！';
-      break;
-    case '?':
-      c = '？';
-      break;
-    case '~':
-      c = '～';
-      break;
-    default:
-      c = (char) pcode;
-    }
-    return (int) c;
-  }
-
-  // "ん"と"っ"を取り扱う
-  // KANJIならmKanjiにも足し、出力を変える
-  private void handleNN(InputConnection ic, String str) {
-    if (mInputMode == KATAKANA) str = hirakana2katakana(str);
-    
-    if (mInputMode == KANJI) {
-      mKanji.append(str);
-      ic.setComposingText(mKanji, 1);
-    } else if (mInputMode == OKURIGANA) {
-      mOkurigana = str;
-      mKanji.append(str);
-      ic.setComposingText(mKanji, 1);
-    } else { // HIRAGANA, KATAKANA
-      ic.commitText(str, 1);
-    }
-    mComposing.setLength(0);
-  }
-
   /**
    * Use this to monitor key events being delivered to the application. We get
    * first crack at them, and can either resume them or let them continue to the
@@ -1044,16 +629,6 @@ public class SoftKeyboard extends InputMethodService implements
     return super.onKeyUp(keyCode, event);
   }
 
-  /**
-   * Helper function to commit any text being composed in to the editor.
-   */
-  private void commitTyped(InputConnection inputConnection) {
-    if (mComposing.length() > 0) {
-      inputConnection.commitText(mComposing, 1);
-      mComposing.setLength(0);
-      updateCandidates();
-    }
-  }
 
   /**
    * Helper to update the shift state of our keyboard based on the initial
@@ -1074,11 +649,12 @@ public class SoftKeyboard extends InputMethodService implements
     }
   }
 
+
   /**
    * Helper to determine if a given character code is alphabetic.
    */
   static public boolean isAlphabet(int code) {
-    return ((code >= 0x41 && code <= 0x5A) || (code >= 0x61 && code <= 0x7A)) ? true : false;
+    return SkkEngine.isAlphabet(code);
   }
 
   /**
@@ -1109,226 +685,67 @@ public class SoftKeyboard extends InputMethodService implements
     }
   }
 
-  // Implementation of KeyboardViewListener
-
-  private ArrayList<String> findKanji(String key) {
-    ArrayList<String> list = new ArrayList<String>();
-    
-    // open database and setup an object cache
-    try {
-      String value = (String)mBTree.find(key);
-
-      if (value == null) {
-        Log.d("TEST", "Dictoinary: Can't find Kanji for " + key);
-        return null;
-      }
-
-      String[] va = value.split("/");
-      Log.d("TEST", "val length = " + va.length);
-
-      if (va.length <= 0) {
-        Log.e("TEST", "Invalid value found: Key = " + key + " value = " + value);
-        return null;
-      }
-
-
-      // val[0]は常に空文字列なので1から始める
-      for (int j = 1; j < va.length; j++) {
-        int k = va[j].indexOf(';'); // セミコロンで解説が始まる
-        if (k != -1) va[j] = va[j].substring(0, k);
-        list.add(va[j]);
-      }
-
-
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
-
-    return list;
-  }
-
-  private String changeAlphabet2Romaji() {
-    String result = mRomajiMap.get(mComposing.toString());
-    return result;
-  }
 
-  private boolean isVowel(int p) {
-    switch (p) {
-    case 'a':
-    case 'i':
-    case 'u':
-    case 'e':
-    case 'o':
-      return true;
-    default:
-      return false;
-    }
-  }
+  // Implementation of KeyboardViewListener
 
   public void onText(CharSequence text) {
     InputConnection ic = getCurrentInputConnection();
     if (ic == null)
       return;
     ic.beginBatchEdit();
-    if (mComposing.length() > 0) {
-      commitTyped(ic);
-    }
-    ic.commitText(text, 0);
+    mBatcher.begin();
+    mEngine.onText(text);
+    mBatcher.end(ic);
     ic.endBatchEdit();
     updateShiftKeyState(getCurrentInputEditorInfo());
   }
 
-  /**
-   * Update the list of available candidates from the current composing text.
-   * This will need to be filled in by however you are determining candidates.
-   */
-  private void updateCandidates() {
-    mChoosedIndex = 0;
-    int clen = mComposing.length();
-    int klen = mKanji.length();
-    
-    if (clen == 0 && klen == 0) {
-      setSuggestions(null, false, true);
-      return;
+  // SkkEngineの出力をエディタと候補の表示に渡す
+  private final SkkEngine.Output mOutput = new SkkEngine.Output() {
+    public void commitText(CharSequence text, int newCursorPosition) {
+      mBatcher.commitText(getCurrentInputConnection(), text, newCursorPosition);
     }
 
-    String str = mComposing.toString();
-    ArrayList<String> list = new ArrayList<String>();
+    public void setComposingText(CharSequence text, int newCursorPosition) {
+      mBatcher.setComposingText(getCurrentInputConnection(), text);
+    }
 
-    switch (mInputMode) {
-    case HIRAKANA:
-    case KATAKANA:
-    case OKURIGANA:
-      list.add(str);
-      break;
-    case ENG2JAP:
-      list.add(str);
-      findKeys(str, list);
-      break;
-    case KANJI:
-      if (clen == 0) {
-        str = mKanji.toString();
-        list.add(str);
-      } else {
-        list.add(str);
-        String tmp = str.concat("a"); // ローマ字入力中はとりあえずア行に借り決めして検索。こうしないと英単語が出て使えない
-        tmp = mRomajiMap.get(tmp);
-        if (tmp != null) str = tmp;
-        str = mKanji.toString().concat(str);
-      }
+    // キーイベントはまとめた文字列より後にエディタに届かないといけない
+    public void sendEnter() {
+      mBatcher.flush(getCurrentInputConnection());
+      keyDownUp(KeyEvent.KEYCODE_ENTER);
+    }
 
-      findKeys(str, list);
-      break;
-    default:
-      Log.d("TEST", "updateCandidates(): Unknown case: " + mInputMode);
+    public void sendBackspace() {
+      mBatcher.flush(getCurrentInputConnection());
+      keyDownUp(KeyEvent.KEYCODE_DEL);
     }
-    
-    setSuggestions(list, false, false);
-  }
 
-  private void findKeys(String key, ArrayList<String> list) {
-    Log.d("TEST", "findkeys(): key = " + key + " mCompose = " + mComposing + "mKanji = " + mKanji + " mIM = " + mInputMode);
-    long start = System.currentTimeMillis();
-    Tuple         tuple = new Tuple();
-    TupleBrowser  browser;
-    try {
-      browser = mBTree.browse( key );
-      if (browser.getNext(tuple) == false) return;
-      // 最初の一つがkeyと同じ場合listに追加しない
-      String first = (String)tuple.getKey();
-      if (!first.equals(key)) list.add(first);
-      
-      if (mInputMode == ENG2JAP) {
-        for (int i = 0; i < 5; i++) {
-          if (browser.getNext(tuple) == false) break;
-          list.add((String)tuple.getKey());
-        }
-        return;
+    public void showCandidates(List<String> candidates, boolean completions, boolean typedWordValid) {
+      if (candidates != null && candidates.size() > 0) {
+        setCandidatesViewShown(true);
+      } else if (isExtractViewShown()) {
+        setCandidatesViewShown(true);
       }
-      
-      int klen = key.length();
-      int c = 0;
-      while (c < 6) {
-        if (browser.getNext(tuple) == false) break;
-        String str = (String)tuple.getKey();
-        if ((str.length() == klen + 1) && isAlphabet(str.charAt(klen))) continue;
-        list.add(str);
-        c++;
+      if (mCandidateView != null) {
+        mCandidateView.setSuggestions(candidates, completions, typedWordValid);
+        mCandidateViewContainer.onSuggestionsChanged();
       }
-
-    } catch (IOException e) {
-      throw new RuntimeException(e);
     }
-    Log.d("TEST", "findKeys finished for " + (System.currentTimeMillis() - start) + "[ms]");
-  }
 
-  public void setSuggestions(ArrayList<String> suggestions,
-      boolean completions, boolean typedWordValid) {
-    if (suggestions != null && suggestions.size() > 0) {
-      mSuggestions = suggestions;
-      setCandidatesViewShown(true);
-    } else if (isExtractViewShown()) {
-      setCandidatesViewShown(true);
-    }
-    if (mCandidateView != null) {
-      mCandidateView.setSuggestions(suggestions, completions, typedWordValid);
-    }
-  }
-
-  private void handleBackspace() {
-    int clen = mComposing.length();
-    int klen = mKanji.length();
-    Log.d("TEST", "handleBackspace(): clen = " + clen + " klen = " + klen + " mInp = " + mInputMode + " mComp = " + mComposing + " mKan = " + mKanji);
-
-    InputConnection ic = getCurrentInputConnection();
-    if (clen > 1) {
-      mComposing.delete(clen - 1, clen);
-      ic.setComposingText(mComposing, 1);
-
-    } else if (clen == 1) {
-      Log.d("TEST", "delete in handleBackspace()");
-      mComposing.setLength(0);
-      if (klen > 0) {
-        ic.setComposingText(mKanji, 1);
-      } else
-        ic.commitText("", 0);
-
-    } else { // length == 0
-      if (klen > 0) mKanji.delete(klen - 1, klen);
-      ic.setComposingText(mKanji, 1);
-      if (klen == 0) keyDownUp(KeyEvent.KEYCODE_DEL);
-    }
-    if (mSuggestions != null) mSuggestions.clear();
-    updateCandidates();
-    // 削除後の長さで更新
-    clen = mComposing.length();
-    klen = mKanji.length();
-    switch (mInputMode) {
-    case CHOOSE:
-      if (klen == 0) {
-        mInputMode = (clen > 0) ? ENG2JAP : HIRAKANA;
-      } else {
-        mInputMode = KANJI;
-      }
-      isOkurigana = false;
-      mOkurigana = null;
-      break;
-    case OKURIGANA:
-      if (clen == 0) {
-        isOkurigana = false;
-        mOkurigana = null;
-        mInputMode = KANJI;
+    public void chooseCandidate(int index) {
+      if (mCandidateView != null) {
+        mCandidateView.choose(index);
+        mCandidateViewContainer.choose(index);
       }
-      break;
-    case KANJI:
-      if (klen == 0 && clen == 0) mInputMode = HIRAKANA;
-      break;
-    case ENG2JAP:
-      if (clen == 0) mInputMode = HIRAKANA;
-      break;
     }
+  };
+
+  public int getChoosedIndex() {
+    return mEngine.getChoosedIndex();
   }
 
+
   private void handleShift() {
     if (mInputView == null) {
       return;
@@ -1344,42 +761,9 @@ public class SoftKeyboard extends InputMethodService implements
     }
   }
 
-  private void handleEnglish(int prime, int[] keyCodes) {
-    Log.d("TEST", "handleEnglish()");
-    InputConnection ic = getCurrentInputConnection();
-    mComposing.append((char) prime);
-    ic.setComposingText(mComposing, 1);
-    updateShiftKeyState(getCurrentInputEditorInfo());
-    updateCandidates();
-  }
-
-  /**
-   * 文字列・改
-   * 
-   * @author 佐藤 雅俊さん <okome@siisise.net> http://siisise.net/java/lang/ のコードを改変
-   */
-  /**
-   * ひらがなを全角カタカナにする
-   */
-  public static String hirakana2katakana(String str) {
-    if (str == null)
-      return null;
-
-    StringBuilder str2 = new StringBuilder();
-
-    for (int i = 0; i < str.length(); i++) {
-      char ch = str.charAt(i);
-
-      if (ch >= 0x3040 && ch <= 0x309A) {
-        ch += 0x60;
-      }
-      str2.append(ch);
-    }
-    return str2.toString();
-  }
 
   private void handleClose() {
-    commitTyped(getCurrentInputConnection());
+    mEngine.commitTyped();
     requestHideSelf(0);
     mInputView.closing();
   }
@@ -1390,69 +774,26 @@ public class SoftKeyboard extends InputMethodService implements
     }
   }
 
-  public boolean isWordSeparator(int code) {
-    return mWordSeparators.contains(String.valueOf((char) code));
-  }
 
   public void pickDefaultCandidate() {
     pickSuggestionManually(0);
   }
 
   public void pickSuggestionManually(int index) {
-    Log.d("TEST", "pickSuggestionManually: mCompletionOn = " + mCompletionOn);
     InputConnection ic = getCurrentInputConnection();
     if (mCompletionOn && mCompletions != null && index >= 0 && index < mCompletions.length) {
       CompletionInfo ci = mCompletions[index];
+      mBatcher.flush(ic);
       ic.commitCompletion(ci);
+      mBatcher.reset();
       if (mCandidateView != null) {
         mCandidateView.clear();
       }
       updateShiftKeyState(getCurrentInputEditorInfo());
-    } else if (mSuggestions.size() > 0) {
-      // If we were generating candidate suggestions for the current
-      // text, we would commit one of them here. But for this sample,
-      // we will just commit the current text.
-      String s = mSuggestions.get(index);
-      
-      switch (mInputMode) {
-      case CHOOSE:
-        ic.commitText(s, 1);
-        if (isOkurigana) ic.commitText(mOkurigana, 1);
-
-        mComposing.setLength(0);
-        mKanji.setLength(0);
-        mInputMode = HIRAKANA;
-        isOkurigana = false;
-        mOkurigana = null;
-        updateCandidates();
-        break;
-      case ENG2JAP:
-        ic.setComposingText(s, 1);
-        mComposing.setLength(0);
-        mComposing.append(s);
-        ArrayList<String> list = findKanji(s);
-        setSuggestions(list, false, true);
-        mInputMode = CHOOSE;
-        break;
-      case KANJI:
-        ic.setComposingText(s, 1);
-        int li = s.length() - 1;
-        int last = s.codePointAt(li);
-        if (isAlphabet(last)) {
-          mKanji.setLength(0);
-          mKanji.append(s.substring(0, li));
-          mComposing.setLength(0);
-          onKey(Character.toUpperCase(last), null); 
-        } else {
-          mKanji.setLength(0);
-          mKanji.append(s);
-          mComposing.setLength(0);
-          list = findKanji(s);
-          setSuggestions(list, false, true);
-          mInputMode = CHOOSE;
-        }
-        break;
-      }
+    } else {
+      mBatcher.begin();
+      mEngine.pickSuggestion(index);
+      mBatcher.end(ic);
     }
   }
   
@@ -1470,7 +811,9 @@ public class SoftKeyboard extends InputMethodService implements
   }
 
   public void swipeLeft() {
-    handleBackspace();
+    mBatcher.begin();
+    mEngine.handleBackspace();
+    mBatcher.end(getCurrentInputConnection());
   }
 
   public void swipeDown() {
@@ -1504,6 +847,18 @@ public class SoftKeyboard extends InputMethodService implements
       }
   }
 
+  /**
+   * "adb shell dumpsys input_method" で内部状態を表示する
+   */
+  @Override
+  protected void dump(FileDescriptor fd, PrintWriter fout, String[] args) {
+    super.dump(fd, fout, args);
+    mEngine.dump(fout);
+    fout.println(mBatcher);
+    if (mCandidateView != null) mCandidateView.dump(fout);
+    KeyLatencyTracer.dump(fout);
+  }
+
   @Override
   public void onBindInput() {
     Log.d("TEST", "onBindInput()");
@@ -0,0 +1,359 @@
+package minghai.skk;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 学習と単語登録のためのユーザー辞書。内容はメモリ上のTreeMapに持つ。
+ *
+ * 変更は追記専用のジャーナル(path + ".journal")に書く。書き込みは専用のスレッドが
+ * SYNC_DELAYの間に来た変更をまとめて1回のfsyncで行うので、learn()はキーを打つ
+ * スレッドを待たせない。ジャーナルがCOMPACT_THRESHOLD行を超えたら、全体を
+ * スナップショット(path、SKK-JISYO形式のUTF-8)に書き直してジャーナルを空にする。
+ *
+ * 起動時はスナップショットを読んでからジャーナルを順に適用する。操作は
+ * 「先頭に移動」と「削除」だけなので、同じジャーナルを2回適用しても結果は変わらない。
+ * スナップショットの書き換え後、ジャーナルを空にする前に落ちても壊れない。
+ * 最後の行が書きかけの場合は読み飛ばす。
+ */
+public class UserDictionary implements SKKDictionary {
+  static final String ENCODING = "UTF-8";
+  // 変更をまとめて書く時間(ms)。この間の変更は1回のfsyncで書く
+  static final long SYNC_DELAY = 500;
+  // ジャーナルがこの行数を超えたらスナップショットにまとめる
+  static final int COMPACT_THRESHOLD = 1000;
+
+  private static final char OP_LEARN = '+';
+  private static final char OP_REMOVE = '-';
+
+  private final File mSnapshot;
+  private final File mJournal;
+  // 値は変更のたびに作り直す読み取り専用のリスト。そのまま外に返してよい
+  private final TreeMap<String, List<String>> mEntries = new TreeMap<String, List<String>>();
+  private final ArrayList<Change> mPending = new ArrayList<Change>();
+  private final Thread mWriter;
+  private Writer mOut;
+  private boolean mClosed = false;
+  // 補完のスコアの付け方。システム辞書と同じにしておくとLayeredDictionaryで正しく混ざる
+  private CompletionIndexWriter.Scoring mScoring = CompletionIndexWriter.Scoring.CANDIDATES;
+
+  // 以下は書き込みスレッドだけが触る(読み込み中を除く)
+  // ジャーナルに書き終えた時点のmEntriesの写し。値のリストはmEntriesと共有する。
+  // スナップショットはこれから書くので、ロックを取ったままmEntriesを複製しなくてよい
+  private final TreeMap<String, List<String>> mWritten;
+  private int mJournalRecords = 0;
+  private FileOutputStream mJournalStream;
+
+  // 統計情報。dumpで表示するだけなので厳密でなくてよい
+  private long mLoadTime;
+  private int mReplayed = 0;
+  private int mSyncs = 0;
+  private int mCompactions = 0;
+  private IOException mLastError = null;
+
+  /**
+   * スナップショットとジャーナルを読み込み、書き込みスレッドを開始する。
+   * ファイルがなければ空の辞書になる
+   */
+  public UserDictionary(String path) throws IOException {
+    long start = System.currentTimeMillis();
+    mSnapshot = new File(path);
+    mJournal = new File(path + ".journal");
+
+    if (mSnapshot.exists()) loadSnapshot();
+    if (mJournal.exists()) replayJournal();
+    openJournal(true);
+    mWritten = new TreeMap<String, List<String>>(mEntries);
+    mLoadTime = System.currentTimeMillis() - start;
+
+    mWriter = new Thread("UserDictionaryWriter") {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    };
+    mWriter.setDaemon(true);
+    mWriter.start();
+  }
+
+  private void loadSnapshot() throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mSnapshot), ENCODING));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] entry = DictionaryCompiler.parseLine(line);
+        if (entry == null) continue;
+        ArrayList<String> words = new ArrayList<String>();
+        String value = entry[1];
+        int start = 1;
+        while (start < value.length()) {
+          int end = value.indexOf('/', start);
+          if (end < 0) end = value.length();
+          if (end > start) words.add(value.substring(start, end));
+          start = end + 1;
+        }
+        if (!words.isEmpty()) mEntries.put(entry[0], Collections.unmodifiableList(words));
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  // 1行は "+読み /候補/" か "-読み /候補/"。'/'で終わっていない行は書きかけなので捨てる
+  private void replayJournal() throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournal), ENCODING));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        mJournalRecords++;
+        int sp = line.indexOf(" /");
+        if (sp < 2 || line.length() < sp + 3 || !line.endsWith("/")) continue;
+        String key = line.substring(1, sp);
+        String word = line.substring(sp + 2, line.length() - 1);
+        if (word.indexOf('/') >= 0) continue;
+        switch (line.charAt(0)) {
+        case OP_LEARN:
+          applyLearn(key, word);
+          break;
+        case OP_REMOVE:
+          applyRemove(key, word);
+          break;
+        default:
+          continue;
+        }
+        mReplayed++;
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void openJournal(boolean append) throws IOException {
+    // 書きかけの行の後ろに続けて書かないよう、改行で終わっていなければ改行を足す
+    boolean terminate = false;
+    if (append && mJournal.length() > 0) {
+      RandomAccessFile f = new RandomAccessFile(mJournal, "r");
+      try {
+        f.seek(f.length() - 1);
+        terminate = f.read() != '\n';
+      } finally {
+        f.close();
+      }
+    }
+    mJournalStream = new FileOutputStream(mJournal, append);
+    mOut = new BufferedWriter(new OutputStreamWriter(mJournalStream, ENCODING));
+    if (terminate) mOut.write('\n');
+  }
+
+  public synchronized List<String> findCandidates(String key) {
+    return mEntries.get(key);
+  }
+
+  /**
+   * 補完のスコアをMappedDictionary.getCompletionScoring()と同じ付け方にする
+   */
+  synchronized void setCompletionScoring(CompletionIndexWriter.Scoring scoring) {
+    mScoring = scoring;
+  }
+
+  // 補完索引はないので、prefixで始まる読みを全てスコアで並べる。ユーザー辞書は小さいので十分速い
+  public synchronized List<Completion> complete(String prefix, int limit) {
+    ArrayList<Completion> list = new ArrayList<Completion>();
+    if (prefix.length() == 0 || limit <= 0) return list;
+    for (Map.Entry<String, List<String>> e : mEntries.tailMap(prefix).entrySet()) {
+      String key = e.getKey();
+      if (!key.startsWith(prefix)) break;
+      if (key.length() == prefix.length() || MappedDictionary.isOkuriKey(key)) continue;
+      list.add(new Completion(key, CompletionIndexWriter.score(mScoring, key.length(), e.getValue().size())));
+    }
+    Completion.top(list, limit);
+    return list;
+  }
+
+  /**
+   * keyでwordを確定したことを記録し、次からwordを先頭の候補にする。
+   * 辞書にない単語の登録にも使う。呼び出したスレッドではファイルに触れない
+   */
+  public synchronized void learn(String key, String word) {
+    List<String> list = mEntries.get(key);
+    if (list != null && list.get(0).equals(word)) return;
+    applyLearn(key, word);
+    enqueue(OP_LEARN, key, word);
+  }
+
+  /**
+   * keyの候補からwordを取り除く
+   */
+  public synchronized void remove(String key, String word) {
+    List<String> list = mEntries.get(key);
+    if (list == null || !list.contains(word)) return;
+    applyRemove(key, word);
+    enqueue(OP_REMOVE, key, word);
+  }
+
+  private void applyLearn(String key, String word) {
+    List<String> old = mEntries.get(key);
+    ArrayList<String> list = new ArrayList<String>((old == null) ? 1 : old.size() + 1);
+    list.add(word);
+    if (old != null) {
+      for (String s : old) {
+        if (!s.equals(word)) list.add(s);
+      }
+    }
+    mEntries.put(key, Collections.unmodifiableList(list));
+  }
+
+  private void applyRemove(String key, String word) {
+    List<String> old = mEntries.get(key);
+    if (old == null) return;
+    ArrayList<String> list = new ArrayList<String>(old);
+    list.remove(word);
+    if (list.isEmpty()) {
+      mEntries.remove(key);
+    } else {
+      mEntries.put(key, Collections.unmodifiableList(list));
+    }
+  }
+
+  // ジャーナルの1行と、それを適用した後のkeyの候補
+  private static class Change {
+    final String record;
+    final String key;
+    // 候補がなくなった時はnull
+    final List<String> words;
+
+    Change(String record, String key, List<String> words) {
+      this.record = record;
+      this.key = key;
+      this.words = words;
+    }
+  }
+
+  // applyLearn()やapplyRemove()の後に呼ぶ
+  private void enqueue(char op, String key, String word) {
+    if (mClosed) return;
+    mPending.add(new Change(op + key + " /" + word + "/\n", key, mEntries.get(key)));
+    notify();
+  }
+
+  private void writeLoop() {
+    while (true) {
+      ArrayList<Change> batch;
+      boolean compact;
+      boolean closed;
+      synchronized (this) {
+        try {
+          while (mPending.isEmpty() && !mClosed) {
+            wait();
+          }
+          // 続けて来る変更を少し待ってまとめる
+          long deadline = System.currentTimeMillis() + SYNC_DELAY;
+          long rest;
+          while (!mClosed && (rest = deadline - System.currentTimeMillis()) > 0) {
+            wait(rest);
+          }
+        } catch (InterruptedException e) {
+          mClosed = true;
+        }
+        batch = new ArrayList<Change>(mPending);
+        mPending.clear();
+        closed = mClosed;
+      }
+
+      // ロックの外でbatchの分だけ写しを進める
+      for (Change c : batch) {
+        if (c.words == null) {
+          mWritten.remove(c.key);
+        } else {
+          mWritten.put(c.key, c.words);
+        }
+      }
+      compact = (mJournalRecords + batch.size() >= COMPACT_THRESHOLD);
+
+      try {
+        if (!batch.isEmpty()) {
+          for (Change c : batch) {
+            mOut.write(c.record);
+          }
+          mOut.flush();
+          mJournalStream.getFD().sync();
+          mJournalRecords += batch.size();
+          mSyncs++;
+        }
+        if (compact) compact(mWritten);
+      } catch (IOException e) {
+        mLastError = e;
+      }
+
+      if (closed) {
+        try {
+          mOut.close();
+        } catch (IOException e) {
+          mLastError = e;
+        }
+        return;
+      }
+    }
+  }
+
+  // スナップショットを一時ファイルに書いてから置き換え、その後でジャーナルを空にする
+  private void compact(Map<String, List<String>> snapshot) throws IOException {
+    File tmp = new File(mSnapshot.getPath() + ".tmp");
+    FileOutputStream stream = new FileOutputStream(tmp);
+    Writer out = new BufferedWriter(new OutputStreamWriter(stream, ENCODING));
+    try {
+      out.write(";; -*- coding: utf-8 -*-\n");
+      for (Map.Entry<String, List<String>> e : snapshot.entrySet()) {
+        out.write(e.getKey());
+        out.write(" /");
+        for (String word : e.getValue()) {
+          out.write(word);
+          out.write('/');
+        }
+        out.write('\n');
+      }
+      out.flush();
+      stream.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(mSnapshot)) {
+      tmp.delete();
+      throw new IOException("Cannot rename " + tmp + " to " + mSnapshot);
+    }
+
+    mOut.close();
+    openJournal(false);
+    mJournalRecords = 0;
+    mCompactions++;
+  }
+
+  /**
+   * 書き込みスレッドに残りを書かせて終了させる。ここでは待たない
+   */
+  public synchronized void close() {
+    mClosed = true;
+    notify();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "UserDictionary(" + mSnapshot + "): " + mEntries.size() + " entries, loaded in " + mLoadTime
+      + "ms (" + mReplayed + " replayed), journal " + mJournalRecords + " records, pending " + mPending.size()
+      + ", syncs " + mSyncs + ", compactions " + mCompactions
+      + ((mLastError != null) ? ", last error " + mLastError : "");
+  }
+}